@@ -1,8 +1,13 @@
 package dbm;
 
 import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import com.jogamp.opengl.GL2;
 
@@ -19,42 +24,102 @@ public class AdaptiveGrid {
 	private boolean terminated;
 	
 	private BalancedQuadtree quadtree;
+	/** Size of the simulated grid in cells */
+	private final int gridWidth;
+	private final int gridHeight;
 	
 	private int totalNumParticles = 0;
-	private int numNewParticlesBeforeSolve = SimulationConstants.SKIP;
 	
-	private List<QuadtreeNode> candidates = new ArrayList<>();
+	private boolean localRelaxation = SimulationConstants.LOCAL_RELAXATION;
+	/** Particles between global solves */
+	private int solveInterval = localRelaxation ? SimulationConstants.GLOBAL_SOLVE_INTERVAL : SimulationConstants.SKIP;
+	/** Particles added since the last global solve, more than solveInterval at first to solve right away */
+	private int numNewParticlesBeforeSolve = solveInterval + 1;
+	/** Growth sites chosen per addLeaf() */
+	private int batchSize = SimulationConstants.BATCH_SIZE;
+	/** Particles added since the potential was last updated */
+	private List<QuadtreeNode> recentlyAdded = new ArrayList<>();
+	
+	private boolean coarsening = SimulationConstants.COARSENING;
+	private int coarseningInterval = SimulationConstants.COARSENING_INTERVAL;
+	private int particlesSinceCoarsening = 0;
+	/** The front of the lightning, kept fine by the next coarsening */
+	private List<QuadtreeNode> grownSinceCoarsening = new ArrayList<>();
+	/** Growth sites kept fine by the next coarsening */
+	private List<QuadtreeNode> protectedSites = new ArrayList<>();
+	private double coarseningCutoff = SimulationConstants.COARSENING_WEIGHT_CUTOFF;
 	
 	private LightningTree lightningTree;
 	
+	/** Every random choice of this simulation is drawn from here */
+	private final Random random;
+	
 	public AdaptiveGrid(int gridWidth, int gridHeight) {
-		this.quadtree = new BalancedQuadtree(gridWidth, gridHeight);		
+		this(gridWidth, gridHeight, new Random());
+	}
+	
+	/**
+	 * A simulation whose growth and jitter are drawn from the given
+	 * generator only, so that a seeded one reproduces the same lightning, and
+	 * simulations on different threads share no state.
+	 */
+	public AdaptiveGrid(int gridWidth, int gridHeight, Random random) {
+		this.quadtree = new BalancedQuadtree(gridWidth, gridHeight);
+		this.gridWidth = gridWidth;
+		this.gridHeight = gridHeight;
+		this.random = random;
+	}
+	
+	/**
+	 * Choose the Poisson solvers: a tight one for the first solve, and usually
+	 * a cheaper approximate one such as SimulationConstants.SOLVER_SOR for the
+	 * solves between particle additions.
+	 */
+	public void setSolvers(int firstSolverBackend, int intermediateSolverBackend) {
+		quadtree.setSolverBackend(firstSolverBackend);
+		quadtree.setIntermediateSolverBackend(intermediateSolverBackend);
+	}
+	
+	/**
+	 * Receive the stats of every Poisson solve, e.g. a SolverTelemetry.
+	 */
+	public void addSolverListener(SolverListener listener) {
+		quadtree.addSolverListener(listener);
 	}
 	
+	/**
+	 * Points are given relative to the domain: (0, 0) is its bottom left and
+	 * (1, 1) its top right, whatever its aspect ratio.
+	 */
 	public void addStart(double x, double y) {
-		QuadtreeNode startNode = quadtree.setStart(x, y);
-		candidates.addAll(quadtree.checkCandidate(startNode));
-		lightningTree = new LightningTree(startNode);
+		QuadtreeNode startNode = quadtree.setStart(x * quadtree.getDomainWidth(), y * quadtree.getDomainHeight());
+		quadtree.checkCandidate(startNode);
+		lightningTree = new LightningTree(startNode, random);
 	}
 	
 	public void addTermination(double x, double y) {
-		quadtree.setTermination(x, y);
+		quadtree.setTermination(x * quadtree.getDomainWidth(), y * quadtree.getDomainHeight());
 	}
 	
 	public void display(GL2 gl) {
 		gl.glPushMatrix();
-		gl.glTranslated(-0.5, -0.5, 0);
+		// fit the domain into the unit square around the origin
+		double width = quadtree.getDomainWidth();
+		double height = quadtree.getDomainHeight();
+		double scale = 1 / Math.max(width, height);
+		gl.glScaled(scale, scale, 1);
+		gl.glTranslated(-width / 2, -height / 2, 0);
 
 		for (QuadtreeNode node : quadtree.getLeaves()) {
-			if (node.type == QuadtreeNode.START) {
+			if (node.getType() == QuadtreeNode.START) {
 				quadtree.drawNode(node, 0, 0.1, 0, gl);
 				continue;
 			}
-			if (node.isBoundary)
-				quadtree.drawNode(node, 0, 0, Math.max(node.potential, 0), gl);
+			if (node.isBoundary())
+				quadtree.drawNode(node, 0, 0, Math.max(node.getPotential(), 0), gl);
 			else {
-				quadtree.drawNode(node, Math.max(node.potential, 0), 0, 0, gl);
-				//System.out.println(Math.max(node.potential, 0));
+				quadtree.drawNode(node, Math.max(node.getPotential(), 0), 0, 0, gl);
+				//System.out.println(Math.max(node.getPotential(), 0));
 			}
 		}
 		quadtree.drawBoundary(gl);
@@ -66,88 +131,163 @@ public class AdaptiveGrid {
 	}
 	
 	/**
+	 * Add the next particle, or the next batch of them, see setBatchSize().
 	 * 
 	 * @return true if a leaf corresponding to the most fine-grained size is added in simulation.
 	 */
 	public boolean addLeaf() {
-		if (numNewParticlesBeforeSolve == SimulationConstants.SKIP) {
+		if (numNewParticlesBeforeSolve > solveInterval) {
 			numNewParticlesBeforeSolve = 0;
+			if (coarsening && particlesSinceCoarsening >= coarseningInterval) {
+				particlesSinceCoarsening = 0;
+				protectedSites.clear();
+				quadtree.getFrontier().heavySites(coarseningCutoff, protectedSites);
+				quadtree.coarsen(protectedSites, SimulationConstants.COARSENING_FRONTIER_DISTANCE,
+						grownSinceCoarsening, SimulationConstants.COARSENING_DISTANCE);
+				grownSinceCoarsening.clear();
+			}
 			quadtree.solve();
-		} else {
-			numNewParticlesBeforeSolve++;
+			recentlyAdded.clear();
+			quadtree.getFrontier().refreshWeights();
+		} else if (localRelaxation && !recentlyAdded.isEmpty()) {
+			quadtree.relaxAround(recentlyAdded);
+			recentlyAdded.clear();
+			quadtree.getFrontier().refreshWeights();
 		}
 		
-		if (candidates.isEmpty()) {
+		List<QuadtreeNode> addedNodes = chooseGrowthSites(quadtree.getFrontier());
+		if (addedNodes.isEmpty()) {
 			System.out.println("No more particle can be added.");
 			return false;
 		}
 		
-		// probability distribution is proportional to potential, normalized by totalPotential
-		List<Double> probDist = new ArrayList<>();
-		double totalPotential = 0;                    
-		int idxChosen = 0;
+		List<Point2D> points = new ArrayList<>(addedNodes.size());
+		for (QuadtreeNode addedNode : addedNodes) {
+			joinLightning(addedNode);
+			points.add(new Point2D.Double(addedNode.midX(), addedNode.midY()));
+		}
+		// refine around the whole batch with one rebalance
+		quadtree.insertAll(points);
 		
-		for (QuadtreeNode candidate : candidates) {
-			if (candidate.isCandidate) {
-				probDist.add(Math.pow(Math.max(0, candidate.potential), SimulationConstants.ETA));
-				totalPotential += Math.pow(Math.max(0, candidate.potential), SimulationConstants.ETA);
-			} else {
-				probDist.add(0.0);
+		for (QuadtreeNode addedNode : addedNodes) {
+			recentlyAdded.add(addedNode);
+			if (coarsening) {
+				grownSinceCoarsening.add(addedNode);
+			}
+			quadtree.checkCandidate(addedNode);
+			if (terminated(addedNode)) {
+				terminated = true;
 			}
 		}
+		numNewParticlesBeforeSolve += addedNodes.size();
+		particlesSinceCoarsening += addedNodes.size();
 		
-		if (totalPotential < EPS) {
-			System.out.println("Brownian at current step. Total potential is too small: " + totalPotential);
-			idxChosen = (int) (Math.random() * candidates.size());
-		} else {
-			double potentialSampleSum = probDist.get(0) / totalPotential;
-			double random = Math.random();
-			while (potentialSampleSum < random && idxChosen < candidates.size() - 1) {
-				idxChosen++;
-				potentialSampleSum += probDist.get(idxChosen) / totalPotential;
+		if (terminated) {
+			lightningTree.analyzeSaliency();
+		}
+		return true;
+	}
+	
+	/**
+	 * Draw up to batchSize growth sites without replacement from the current
+	 * potential, with probability proportional to potential^ETA. A site next
+	 * to one drawn before is rejected, as the potential there does not account
+	 * for it.
+	 */
+	private List<QuadtreeNode> chooseGrowthSites(Frontier frontier) {
+		List<QuadtreeNode> sites = new ArrayList<>();
+		// insertion ordered, so the weights are restored in the same order every run
+		Set<QuadtreeNode> rejected = new LinkedHashSet<>();
+		while (sites.size() < batchSize && rejected.size() < frontier.size()) {
+			QuadtreeNode site;
+			double totalPotential = frontier.totalWeight();
+			if (totalPotential < EPS) {
+				System.out.println("Brownian at current step. Total potential is too small: " + totalPotential);
+				site = frontier.get((int) (random.nextDouble() * frontier.size()));
+				if (rejected.contains(site)) {
+					continue;
+				}
+			} else {
+				site = frontier.sample(random.nextDouble() * totalPotential);
+				if (rejected.contains(site)) {
+					break;
+				}
+			}
+			// an attractor is boundary already, so leave the frontier explicitly
+			frontier.remove(site);
+			sites.add(site);
+			if (sites.size() == batchSize) {
+				break;
+			}
+			site.updateNeighbors();
+			for (QuadtreeNode neighbor : site.getAllNeighbors()) {
+				if (frontier.contains(neighbor) && rejected.add(neighbor)) {
+					frontier.suppress(neighbor);
+				}
+			}
+		}
+		for (QuadtreeNode node : rejected) {
+			if (frontier.contains(node)) {
+				frontier.restore(node);
 			}
 		}
-		candidates.get(idxChosen).isBoundary = true;
+		return sites;
+	}
+	
+	private void joinLightning(QuadtreeNode addedNode) {
+		addedNode.setBoundary(true);
 		// is part of the lightning, potential drops to 0
-		candidates.get(idxChosen).potential = 0;
-		candidates.get(idxChosen).type = QuadtreeNode.START;
+		addedNode.setPotential(0);
+		addedNode.setType(QuadtreeNode.START);
 		
-		QuadtreeNode addedNode = candidates.get(idxChosen);
-		addedNode.populateNeighbors();
+		addedNode.markNeighborsDirty();
+		addedNode.updateNeighbors();
 		// find a neighbor that is also part of the lightning for connecting particles in render
 		QuadtreeNode neighborChosen = null;
 		for (QuadtreeNode neighbor : addedNode.getAllNeighbors()) {
-			if (neighbor.type == QuadtreeNode.START) {
+			if (neighbor.getType() == QuadtreeNode.START) {
 				neighborChosen = neighbor;
 				break;
 			}
 		}
+		if (neighborChosen == null) {
+			neighborChosen = findLightningAtCorners(addedNode);
+		}
 		if (neighborChosen == null) {
 			System.err.println("Newly added particle does not have neighbors that are part of the lightning.");
 		}
 		lightningTree.addEdge(neighborChosen, addedNode);
-
-		quadtree.insert(addedNode.midX, addedNode.midY);
-
-		candidates.addAll(quadtree.checkCandidate(addedNode));
-		if (candidates.size() > SimulationConstants.MAX_CANDIDATES_SIZE) {
-			for (int i = 0; i < candidates.size() - SimulationConstants.MAX_CANDIDATES_SIZE; i++) {
-				candidates.remove(i);
+	}
+	
+	/**
+	 * The diagonal neighbors are found through a side neighbor, which misses
+	 * the lightning when that side neighbor was merged by a coarsening: look
+	 * the cells at the corners up by position instead.
+	 */
+	private QuadtreeNode findLightningAtCorners(QuadtreeNode node) {
+		double side = node.rightX() - node.leftX();
+		for (int dx = -1; dx <= 1; dx += 2) {
+			for (int dy = -1; dy <= 1; dy += 2) {
+				double x = node.midX() + dx * side;
+				double y = node.midY() + dy * side;
+				if (x < 0 || y < 0 || x >= quadtree.getDomainWidth() || y >= quadtree.getDomainHeight()) {
+					continue;
+				}
+				QuadtreeNode corner = quadtree.locate(x, y);
+				if (corner.getType() == QuadtreeNode.START) {
+					return corner;
+				}
 			}
 		}
-		
-		terminated = terminated(addedNode);
-		if (terminated) {
-			lightningTree.analyzeSaliency();
-		}
-		return true;
+		return null;
 	}
 	
 	private boolean terminated(QuadtreeNode node) {
 		boolean terminated = false;
 		
-		for (QuadtreeNode neighbor : node.neighbors) {
-			if (neighbor != null && neighbor.type == QuadtreeNode.TERMINATE) {
+		for (int i = 0; i < 8; i++) {
+			QuadtreeNode neighbor = node.getNeighborSlot(i);
+			if (neighbor != null && neighbor.getType() == QuadtreeNode.TERMINATE) {
 				terminated = true;
 				break;
 			}
@@ -158,14 +298,70 @@ public class AdaptiveGrid {
 		return terminated;
 	}
 	
+	/**
+	 * Relax the potential locally around every new particle, with a global
+	 * solve every solveInterval particles, or (if false) solve globally every
+	 * SimulationConstants.SKIP particles only.
+	 */
+	public void setLocalRelaxation(boolean localRelaxation, int solveInterval) {
+		this.localRelaxation = localRelaxation;
+		this.solveInterval = localRelaxation ? solveInterval : SimulationConstants.SKIP;
+	}
+	
+	/**
+	 * Coarsen the quadtree away from the front before a global solve, at
+	 * most once every interval particles, or (if false) never.
+	 */
+	public void setCoarsening(boolean coarsening, int interval) {
+		this.coarsening = coarsening;
+		this.coarseningInterval = interval;
+		grownSinceCoarsening.clear();
+	}
+	
+	/**
+	 * Choose up to batchSize growth sites per addLeaf() from the same
+	 * potential, rejecting sites next to each other, and refine the tree
+	 * around all of them at once. The solve interval still counts particles,
+	 * so a batch larger than it is followed by a solve every time.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Write the lightning: a header line with the size of the grid in cells,
+	 * the size of the domain and of a grid cell in the coordinates of the
+	 * tree, the number of particles and whether the lightning terminated, then
+	 * its segments as in LightningTree.write(). Segments are in the
+	 * coordinates of the tree, where roots have side 1; divide by the cell
+	 * size for grid cells. The domain may extend past the grid, up to whole
+	 * roots.
+	 */
+	public void writeLightning(Writer out) throws IOException {
+		out.write("# grid " + gridWidth + " " + gridHeight + " domain " + quadtree.getDomainWidth() + " "
+				+ quadtree.getDomainHeight() + " cell " + 1.0 / (1 << quadtree.getMaxDepth()) + " particles "
+				+ numParticles() + " terminated " + terminated + "\n");
+		lightningTree.write(out);
+		out.flush();
+	}
+	
+	/**
+	 * Particles in the lightning, including the start
+	 */
+	public int numParticles() {
+		return lightningTree == null ? 0 : lightningTree.numParticles();
+	}
+	
 	public boolean hasTerminated() {
 		return terminated;
 	}
 	
 	public void addAttractionPoints(List<Point2D> attractionPoints) {
+		List<Point2D> points = new ArrayList<>(attractionPoints.size());
 		for (Point2D p : attractionPoints) {
-			quadtree.setAttraction(p.getX(), p.getY());
+			points.add(new Point2D.Double(p.getX() * quadtree.getDomainWidth(), p.getY() * quadtree.getDomainHeight()));
 		}
+		quadtree.setAttractions(points);
 	}
 
 }
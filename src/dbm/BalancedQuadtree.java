@@ -1,8 +1,12 @@
 package dbm;
 
+import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.jogamp.opengl.GL2;
 
@@ -10,40 +14,140 @@ public class BalancedQuadtree {
 
 	
 
-	QuadtreeNode root;
+	/**
+	 * The domain is tiled by rootsX by rootsY square root nodes, row by row
+	 * from the bottom left, each of side 1 in the coordinates of the tree.
+	 */
+	List<QuadtreeNode> roots = new ArrayList<>();
+	private int rootsX;
+	private int rootsY;
+	/** The domain in cells of maxDepth; the roots may reach beyond it */
+	private int gridWidth;
+	private int gridHeight;
+	/**
+	 * All leaves, the interior (non-boundary) leaves and the leaves at
+	 * maxDepth, kept up to date by subdivide(), merge() and setBoundary(). The order
+	 * is arbitrary: a removed leaf is replaced by the last one.
+	 */
+	private List<QuadtreeNode> leaves = new ArrayList<>();
+	private List<QuadtreeNode> interiorLeaves = new ArrayList<>();
 	private List<QuadtreeNode> finestLeaves = new ArrayList<>();
+	private List<QuadtreeNode> leavesView = Collections.unmodifiableList(leaves);
+	private List<QuadtreeNode> interiorLeavesView = Collections.unmodifiableList(interiorLeaves);
+	private List<QuadtreeNode> finestLeavesView = Collections.unmodifiableList(finestLeaves);
+	/** Nodes whose neighbor lists were invalidated since the last buildNeighbors() */
+	private List<QuadtreeNode> neighborUpdates = new ArrayList<>();
+	/** Nodes created since the last balanceQuadtree() */
+	private List<QuadtreeNode> balanceQueue = new ArrayList<>();
+	/** Growth sites around the lightning, see checkCandidate() */
+	private Frontier frontier = new Frontier();
+	/**
+	 * The node last inserted or located, from which the next search starts:
+	 * growth inserts land next to the previous one, so the search only
+	 * climbs to their nearest common ancestor instead of descending from
+	 * the root. Null if it was merged away.
+	 */
+	private QuadtreeNode finger;
+	private boolean fingerSearch = true;
+	/** The state of every node, see NodeSlab */
+	private NodeSlab slab;
 
 	private int maxDepth;
 	
 	private boolean solveFirstTime = true;
+	/** Kept between solves so that buffers and preconditioner storage are reused */
+	private PoissonEqSolver solver;
+	private int solverBackend = SimulationConstants.SOLVER_BACKEND;
+	private int intermediateSolverBackend = SimulationConstants.INTERMEDIATE_SOLVER_BACKEND;
+	private int preconditioner = SimulationConstants.PRECONDITIONER;
+	private int solverThreads = SimulationConstants.SOLVER_THREADS;
+	private List<SolverListener> solverListeners = new ArrayList<>();
+	/** Cells that become attractors when created; null for none */
 	private boolean[][] noise;
 
 	public BalancedQuadtree(int gridWidth, int gridHeight) {
-		root = new QuadtreeNode(null, 0, 1, 1, 0, 0, 0);
-		root.subdivide();
+		this(gridWidth, gridHeight, SimulationConstants.QUADTREE_STORAGE);
+	}
+
+	/**
+	 * @param storage SimulationConstants.QUADTREE_POINTER or QUADTREE_LINEAR,
+	 *            which also keeps every node in a LinearQuadtreeIndex for
+	 *            constant time neighbor finding
+	 */
+	public BalancedQuadtree(int gridWidth, int gridHeight, int storage) {
+		this(gridWidth, gridHeight, storage, SimulationConstants.NODE_STORAGE);
+	}
+
+	/**
+	 * A grid of gridWidth by gridHeight cells is covered by a row or grid of
+	 * square roots whose side is the largest power of 2 not above the shorter
+	 * side, doubled until at most SimulationConstants.MAX_ROOTS_PER_SIDE
+	 * cover the longer side, so that a long strip does not pay for a square
+	 * tree and a thin one not for thousands of roots. Cells at maxDepth are
+	 * grid cells. Where the roots reach beyond the grid they are clipped: the
+	 * nodes outside are boundary at potential 0, as the border, and the nodes
+	 * across the edge of the grid are kept subdivided.
+	 * 
+	 * @param nodeStorage SimulationConstants.NODE_STORAGE_HEAP or
+	 *            NODE_STORAGE_OFF_HEAP, which keeps the records of the nodes
+	 *            in an OffHeapNodeStore
+	 */
+	public BalancedQuadtree(int gridWidth, int gridHeight, int storage, int nodeStorage) {
+		this.gridWidth = Math.max(1, gridWidth);
+		this.gridHeight = Math.max(1, gridHeight);
+		int longer = Math.max(this.gridWidth, this.gridHeight);
+		int rootSize = Integer.highestOneBit(Math.min(this.gridWidth, this.gridHeight));
+		while ((longer + rootSize - 1) / rootSize > SimulationConstants.MAX_ROOTS_PER_SIDE) {
+			rootSize *= 2;
+		}
+		maxDepth = Integer.numberOfTrailingZeros(rootSize);
+		rootsX = (this.gridWidth + rootSize - 1) / rootSize;
+		rootsY = (this.gridHeight + rootSize - 1) / rootSize;
+
+		LinearQuadtreeIndex index = null;
+		if (storage == SimulationConstants.QUADTREE_LINEAR) {
+			index = new LinearQuadtreeIndex(rootsX, rootsY);
+		}
+		slab = new NodeSlab(this, index, nodeStorage == SimulationConstants.NODE_STORAGE_OFF_HEAP);
+		for (int y = 0; y < rootsY; y++) {
+			for (int x = 0; x < rootsX; x++) {
+				QuadtreeNode root = slab.node(slab.allocate());
+				root.init(NodeSlab.NONE, 0, x, y, 0);
+				if (index != null) {
+					index.add(root);
+				}
+				roots.add(root);
+				nodeCreated(root);
+			}
+		}
+		for (QuadtreeNode root : roots) {
+			root.subdivide();
+			clip(root);
+		}
 
-		maxDepth = (int) Math.ceil(Math.log(Math.max(gridWidth, gridHeight)) / Math.log(2));
-		noise = new boolean[gridWidth][gridHeight];
 		//noise = new NoiseSampler().poissonDiskSample(gridWidth, gridHeight, 5);
 		System.out.println("Max depth   " + maxDepth);
 	}
 
 	public void drawBoundary(GL2 gl) {
-		drawBoundary(root, gl);
+		for (QuadtreeNode root : roots) {
+			drawBoundary(root, gl);
+		}
 	}
 
 	public void drawBoundary(QuadtreeNode node, GL2 gl) {
 		gl.glColor4d(0.2, 0.2, 0.2, 0.3);
 
 		gl.glBegin(GL2.GL_LINE_STRIP);
-		gl.glVertex2d(node.rightX, node.topY);
-		gl.glVertex2d(node.rightX, node.bottomY);
-		gl.glVertex2d(node.leftX, node.bottomY);
-		gl.glVertex2d(node.leftX, node.topY);
+		gl.glVertex2d(node.rightX(), node.topY());
+		gl.glVertex2d(node.rightX(), node.bottomY());
+		gl.glVertex2d(node.leftX(), node.bottomY());
+		gl.glVertex2d(node.leftX(), node.topY());
 		gl.glEnd();
 
-		if (!node.isLeaf) {
-			for (QuadtreeNode child : node.children) {
+		if (!node.isLeaf()) {
+			for (int i = 0; i < 4; i++) {
+				QuadtreeNode child = node.getChild(i);
 				drawBoundary(child, gl);
 			}
 		}
@@ -53,102 +157,244 @@ public class BalancedQuadtree {
 
 		gl.glColor4d(r, g, b, 1);
 		gl.glBegin(GL2.GL_QUADS);
-		gl.glVertex2d(node.rightX, node.topY);
-		gl.glVertex2d(node.rightX, node.bottomY);
-		gl.glVertex2d(node.leftX, node.bottomY);
-		gl.glVertex2d(node.leftX, node.topY);
+		gl.glVertex2d(node.rightX(), node.topY());
+		gl.glVertex2d(node.rightX(), node.bottomY());
+		gl.glVertex2d(node.leftX(), node.bottomY());
+		gl.glVertex2d(node.leftX(), node.topY());
 		gl.glEnd();
 	}
 
+	/**
+	 * Read-only live view of the leaves; the tree must not be refined while
+	 * iterating over it.
+	 */
 	public List<QuadtreeNode> getLeaves() {
-		return getLeaves(root);
+		return leavesView;
 	}
 
 	public List<QuadtreeNode> getLeaves(QuadtreeNode node) {
 		List<QuadtreeNode> leaves = new ArrayList<>();
-		if (node.isLeaf) {
+		if (node.isLeaf()) {
 			leaves.add(node);
 		} else {
-			for (QuadtreeNode child : node.children) {
+			for (int i = 0; i < 4; i++) {
+				QuadtreeNode child = node.getChild(i);
 				leaves.addAll(getLeaves(child));
 			}
 		}
 		return leaves;
 	}
 	
-	private List<QuadtreeNode> getInteriorLeaves() {
-		return getInteriorLeaves(root);
+	/**
+	 * Read-only live view of the leaves that are not boundary, i.e. the
+	 * unknowns of the Poisson equation.
+	 */
+	public List<QuadtreeNode> getInteriorLeaves() {
+		return interiorLeavesView;
 	}
-	
-	private List<QuadtreeNode> getInteriorLeaves(QuadtreeNode node) {
-		List<QuadtreeNode> leaves = new ArrayList<>();
-		if (node.isLeaf) {
-			if (!node.isBoundary) {
-				leaves.add(node);
-			}
-		} else {
-			for (QuadtreeNode child : node.children) {
-				leaves.addAll(getInteriorLeaves(child));
-			}
+
+	/**
+	 * Get the leaves at max resolution, as a read-only live view.
+	 */
+	public List<QuadtreeNode> getFinestLeaves() {
+		return finestLeavesView;
+	}
+
+	/**
+	 * The root covering cell (x, y) of depth 0, or null outside the domain
+	 */
+	QuadtreeNode rootAt(int x, int y) {
+		if (x < 0 || y < 0 || x >= rootsX || y >= rootsY) {
+			return null;
 		}
-		return leaves;
+		return roots.get(y * rootsX + x);
 	}
 
 	/**
-	 * Get the leaves at max resolution.
+	 * Width of the domain in the coordinates of the tree, in which the roots
+	 * have side 1: the points passed to insert() etc. lie in
+	 * [0, getDomainWidth()] x [0, getDomainHeight()].
 	 */
-	public List<QuadtreeNode> getFinestLeaves() {
-		return finestLeaves;
+	public double getDomainWidth() {
+		return (double) gridWidth / (1 << maxDepth);
+	}
+
+	public double getDomainHeight() {
+		return (double) gridHeight / (1 << maxDepth);
+	}
+
+	/**
+	 * True if the node lies beyond the edge of the grid
+	 */
+	private boolean isOutside(QuadtreeNode node) {
+		int shift = maxDepth - node.getDepth();
+		return node.getCellX() << shift >= gridWidth || node.getCellY() << shift >= gridHeight;
+	}
+
+	/**
+	 * True if the edge of the grid cuts through the node
+	 */
+	private boolean isAcrossEdge(QuadtreeNode node) {
+		int shift = maxDepth - node.getDepth();
+		return !isOutside(node)
+				&& ((node.getCellX() + 1) << shift > gridWidth || (node.getCellY() + 1) << shift > gridHeight);
+	}
+
+	/**
+	 * Subdivide the nodes under node that the edge of the grid cuts through,
+	 * until every leaf is inside or outside. Those nodes never become leaves
+	 * again, as their children outside are boundary and are not merged.
+	 */
+	private void clip(QuadtreeNode node) {
+		if (!isAcrossEdge(node)) {
+			return;
+		}
+		if (!node.hasChildren()) {
+			node.subdivide();
+		}
+		for (int i = 0; i < 4; i++) {
+			clip(node.getChild(i));
+		}
 	}
 
 	/**
 	 * Insert point (x, y) into quadtree at max level.
 	 */
 	public QuadtreeNode insert(double x, double y) {
-		int currDepth = 0;
-		QuadtreeNode currNode = root;
-		boolean existed = true;
+		QuadtreeNode node = refine(x, y);
+		balanceQuadtree();
+		return node;
+	}
 
-		while (currDepth < maxDepth) {
-			double diffX = x - currNode.midX;
-			double diffY = y - currNode.midY;
-
-			// the index of the child of current node that point (x, y) belongs
-			// to
-			int childIdx = 1;
-			if (diffX > 0) {
-				if (diffY < 0)
-					childIdx = 2;
-			} else if (diffY < 0) {
-				childIdx = 3;
-			} else {
-				childIdx = 0;
-			}
+	/**
+	 * Insert all points at max level, balancing once at the end. The points
+	 * are refined in Morton (Z) order, so that consecutive inserts walk
+	 * nearby parts of the tree. Neighbor lists are rebuilt once, by the next
+	 * solve, as after single inserts.
+	 * 
+	 * @return the inserted node of each point, in the order of points
+	 */
+	public List<QuadtreeNode> insertAll(List<? extends Point2D> points) {
+		int n = points.size();
+		final long[] codes = new long[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			Point2D point = points.get(i);
+			codes[i] = LinearQuadtreeIndex.locationalCode(maxDepth, finestCellX(point.getX()),
+					finestCellY(point.getY()));
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(codes[a], codes[b]));
 
-			// check if that child of the current node exists
-			if (currNode.children.isEmpty() || currNode.children.get(childIdx) == null) {
+		QuadtreeNode[] nodes = new QuadtreeNode[n];
+		for (int i : order) {
+			Point2D point = points.get(i);
+			nodes[i] = refine(point.getX(), point.getY());
+		}
+		balanceQuadtree();
+		return Arrays.asList(nodes);
+	}
+
+	/**
+	 * The leaf covering point (x, y), without refining the tree
+	 */
+	public QuadtreeNode locate(double x, double y) {
+		int cellX = finestCellX(x);
+		int cellY = finestCellY(y);
+		QuadtreeNode currNode = climb(cellX, cellY);
+		while (currNode.hasChildren()) {
+			currNode = currNode.getChild(childIndex(currNode, cellX, cellY));
+		}
+		finger = currNode;
+		return currNode;
+	}
+
+	/**
+	 * Refine the tree down to the cell of point (x, y) at max level and
+	 * around it, without restoring the balance.
+	 */
+	private QuadtreeNode refine(double x, double y) {
+		int cellX = finestCellX(x);
+		int cellY = finestCellY(y);
+		QuadtreeNode currNode = climb(cellX, cellY);
+		boolean existed = true;
+
+		while (currNode.getDepth() < maxDepth) {
+			// check if the child of the current node that the cell belongs to exists
+			if (!currNode.hasChildren()) {
 				existed = false;
 				currNode.subdivide();
 			}
-
-			currNode = currNode.children.get(childIdx);
-			currDepth++;
+			currNode = currNode.getChild(childIndex(currNode, cellX, cellY));
 		}
+		finger = currNode;
 
 		if (!existed) {
-			finestLeaves.addAll(currNode.parent.children);
-			for (QuadtreeNode child : currNode.parent.children) {
+			for (int i = 0; i < 4; i++) {
+				QuadtreeNode child = currNode.getParent().getChild(i);
 				generateNoiseAttraction(child);
 			}
 		}
 
 		enforceSameDepth(currNode);
-		
-		balanceQuadtree();
 
 		return currNode;
 	}
 
+	/**
+	 * The nearest ancestor of the finger covering the given cell of max
+	 * level, or its root if the finger is unset or in another root
+	 */
+	private QuadtreeNode climb(int cellX, int cellY) {
+		QuadtreeNode node = fingerSearch ? finger : null;
+		while (node != null) {
+			int shift = maxDepth - node.getDepth();
+			if (cellX >> shift == node.getCellX() && cellY >> shift == node.getCellY()) {
+				return node;
+			}
+			node = node.getParent();
+		}
+		return rootAt(cellX >> maxDepth, cellY >> maxDepth);
+	}
+
+	/**
+	 * The index of the child of node that contains the given cell of max
+	 * level
+	 */
+	private int childIndex(QuadtreeNode node, int cellX, int cellY) {
+		int shift = maxDepth - node.getDepth() - 1;
+		int right = (cellX >> shift) & 1;
+		int top = (cellY >> shift) & 1;
+		if (top == 1) {
+			return right == 1 ? 1 : 0;
+		} else {
+			return right == 1 ? 2 : 3;
+		}
+	}
+
+	/**
+	 * Column of the cell of max level containing coordinate x. A point on the
+	 * edge between two cells belongs to the left one, and to the one above in
+	 * finestCellY(), as in the descent by midpoints this replaces.
+	 */
+	private int finestCellX(double x) {
+		int cellX = (int) Math.ceil(x * (1 << maxDepth)) - 1;
+		return Math.min(Math.max(cellX, 0), gridWidth - 1);
+	}
+
+	private int finestCellY(double y) {
+		int cellY = (int) Math.floor(y * (1 << maxDepth));
+		return Math.min(Math.max(cellY, 0), gridHeight - 1);
+	}
+
+	/**
+	 * @param fingerSearch if false, every insert and locate descends from the
+	 *            root
+	 */
+	void setFingerSearch(boolean fingerSearch) {
+		this.fingerSearch = fingerSearch;
+	}
+
 	/**
 	 * Enforce that the depth of neighboring nodes of the inserted nodes are all
 	 * of maxDepth
@@ -157,12 +403,12 @@ public class BalancedQuadtree {
 		for (int dir : QuadtreeNode.NEIGHBOR_DIRS) {
 			QuadtreeNode neighbor = node.getNeighbor(dir);
 			if (neighbor != null) {
-				while (neighbor.depth < maxDepth) {
+				while (neighbor.getDepth() < maxDepth) {
 					neighbor.subdivide();
 					neighbor = node.getNeighbor(dir);
 				}
-				finestLeaves.addAll(neighbor.parent.children);
-				for (QuadtreeNode child : neighbor.parent.children) {
+				for (int i = 0; i < 4; i++) {
+					QuadtreeNode child = neighbor.getParent().getChild(i);
 					generateNoiseAttraction(child);
 				}
 			}
@@ -172,24 +418,24 @@ public class BalancedQuadtree {
 		if (neighborAbove != null) {
 			QuadtreeNode neighborTopLeft = neighborAbove.getNeighborLeft();
 			if (neighborTopLeft != null) {
-				while (neighborTopLeft.depth < maxDepth) {
+				while (neighborTopLeft.getDepth() < maxDepth) {
 					neighborTopLeft.subdivide();
-					neighborTopLeft = neighborTopLeft.children.get(2);
+					neighborTopLeft = neighborTopLeft.getChild(2);
 				}
-				finestLeaves.addAll(neighborTopLeft.parent.children);
-				for (QuadtreeNode child : neighborTopLeft.parent.children) {
+				for (int i = 0; i < 4; i++) {
+					QuadtreeNode child = neighborTopLeft.getParent().getChild(i);
 					generateNoiseAttraction(child);
 				}
 			}
 
 			QuadtreeNode neighborTopRight = neighborAbove.getNeighborRight();
 			if (neighborTopRight != null) {
-				while (neighborTopRight.depth < maxDepth) {
+				while (neighborTopRight.getDepth() < maxDepth) {
 					neighborTopRight.subdivide();
-					neighborTopRight = neighborTopRight.children.get(3);
+					neighborTopRight = neighborTopRight.getChild(3);
 				}
-				finestLeaves.addAll(neighborTopRight.parent.children);
-				for (QuadtreeNode child : neighborTopRight.parent.children) {
+				for (int i = 0; i < 4; i++) {
+					QuadtreeNode child = neighborTopRight.getParent().getChild(i);
 					generateNoiseAttraction(child);
 				}
 			}
@@ -199,180 +445,505 @@ public class BalancedQuadtree {
 		if (neighborBelow != null) {
 			QuadtreeNode neighborBottomLeft = neighborBelow.getNeighborLeft();
 			if (neighborBottomLeft != null) {
-				while (neighborBottomLeft.depth < maxDepth) {
+				while (neighborBottomLeft.getDepth() < maxDepth) {
 					neighborBottomLeft.subdivide();
-					neighborBottomLeft = neighborBottomLeft.children.get(1);
+					neighborBottomLeft = neighborBottomLeft.getChild(1);
 				}
-				finestLeaves.addAll(neighborBottomLeft.parent.children);
-				for (QuadtreeNode child : neighborBottomLeft.parent.children) {
+				for (int i = 0; i < 4; i++) {
+					QuadtreeNode child = neighborBottomLeft.getParent().getChild(i);
 					generateNoiseAttraction(child);
 				}
 			}
 
 			QuadtreeNode neighborBottomRight = neighborBelow.getNeighborRight();
 			if (neighborBottomRight != null) {
-				while (neighborBottomRight.depth < maxDepth) {
+				while (neighborBottomRight.getDepth() < maxDepth) {
 					neighborBottomRight.subdivide();
-					neighborBottomRight = neighborBottomRight.children.get(0);
+					neighborBottomRight = neighborBottomRight.getChild(0);
 				}
-				finestLeaves.addAll(neighborBottomRight.parent.children);
-				for (QuadtreeNode child : neighborBottomRight.parent.children) {
+				for (int i = 0; i < 4; i++) {
+					QuadtreeNode child = neighborBottomRight.getParent().getChild(i);
 					generateNoiseAttraction(child);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Add the cells around a new part of the lightning to the frontier
+	 * 
+	 * @return the cells that were not growth sites yet
+	 */
 	public List<QuadtreeNode> checkCandidate(QuadtreeNode node) {
 		List<QuadtreeNode> candidates = new ArrayList<>();
 
 		QuadtreeNode neighborAbove = node.getNeighborAbove();
-		if (neighborAbove != null && neighborAbove.depth == maxDepth) {
-			if (!neighborAbove.isCandidate) {
-				candidates.add(neighborAbove);
-				neighborAbove.isCandidate = true;
-			}
-
-			QuadtreeNode neighborTopLeft = neighborAbove.getNeighborLeft();
-			if (neighborTopLeft != null && !neighborTopLeft.isCandidate) {
-				candidates.add(neighborTopLeft);
-				neighborTopLeft.isCandidate = true;
-			}
-
-			QuadtreeNode neighborTopRight = neighborAbove.getNeighborLeft();
-			if (neighborTopRight != null && !neighborTopRight.isCandidate) {
-				candidates.add(neighborTopRight);
-				neighborTopRight.isCandidate = true;
-			}
+		if (neighborAbove != null && neighborAbove.getDepth() == maxDepth) {
+			addCandidate(neighborAbove, candidates);
+			addCandidate(neighborAbove.getNeighborLeft(), candidates);
+			addCandidate(neighborAbove.getNeighborRight(), candidates);
 		}
 
 		QuadtreeNode neighborBelow = node.getNeighborBelow();
-		if (neighborBelow != null && neighborBelow.depth == maxDepth) {
-			if (!neighborBelow.isCandidate) {
-				candidates.add(neighborBelow);
-				neighborBelow.isCandidate = true;
-			}
+		if (neighborBelow != null && neighborBelow.getDepth() == maxDepth) {
+			addCandidate(neighborBelow, candidates);
+			addCandidate(neighborBelow.getNeighborLeft(), candidates);
+			addCandidate(neighborBelow.getNeighborRight(), candidates);
+		}
 
-			QuadtreeNode neighborBottomLeft = neighborBelow.getNeighborLeft();
-			if (neighborBottomLeft != null && !neighborBottomLeft.isCandidate) {
-				candidates.add(neighborBottomLeft);
-				neighborBottomLeft.isCandidate = true;
-			}
+		addCandidate(node.getNeighborLeft(), candidates);
+		addCandidate(node.getNeighborRight(), candidates);
 
-			QuadtreeNode neighborBottomRight = neighborBelow.getNeighborLeft();
-			if (neighborBottomRight != null && !neighborBottomRight.isCandidate) {
-				candidates.add(neighborBottomRight);
-				neighborBottomRight.isCandidate = true;
-			}
-		}
+		return candidates;
+	}
 
-		QuadtreeNode neighborLeft = node.getNeighborLeft();
-		if (neighborLeft != null && !neighborLeft.isCandidate) {
-			candidates.add(neighborLeft);
-			neighborLeft.isCandidate = true;
+	/**
+	 * Leaves that are not boundary can be grown into, and so can attractors
+	 */
+	private void addCandidate(QuadtreeNode node, List<QuadtreeNode> candidates) {
+		if (node == null || !node.isLeaf() || frontier.contains(node)) {
+			return;
 		}
-
-		QuadtreeNode neighborRight = node.getNeighborRight();
-		if (neighborRight != null && !neighborRight.isCandidate) {
-			candidates.add(neighborRight);
-			neighborRight.isCandidate = true;
+		if (node.isBoundary() && node.getType() != QuadtreeNode.ATTRACT) {
+			return;
 		}
+		frontier.add(node);
+		candidates.add(node);
+	}
 
-		return candidates;
+	/**
+	 * The growth sites, kept up to date as the tree changes
+	 */
+	Frontier getFrontier() {
+		return frontier;
 	}
 
+	/**
+	 * Restore the 2:1 balance after subdivisions. The tree was balanced
+	 * before them, so only a node created since can have a neighbor more than
+	 * one level coarser. Subdividing that neighbor queues its children, which
+	 * are checked in turn.
+	 */
 	private void balanceQuadtree() {
-		List<QuadtreeNode> leaves = getLeaves();
-
 		int idx = 0;
-		while (idx < leaves.size()) {
-			QuadtreeNode node = leaves.get(idx);
+		while (idx < balanceQueue.size()) {
+			QuadtreeNode node = balanceQueue.get(idx++);
+			if (!node.isLeaf()) {
+				// its children are queued too, and are checked against finer neighbors
+				continue;
+			}
 			for (int dir : QuadtreeNode.NEIGHBOR_DIRS) {
 				QuadtreeNode neighbor = node.getNeighbor(dir);
 				if (neighbor != null) {
-					while (neighbor.depth < node.depth - 1) {
+					while (neighbor.getDepth() < node.getDepth() - 1) {
 						neighbor.subdivide();
-						leaves.addAll(neighbor.children);
 						neighbor = node.getNeighbor(dir);
 					}
 				}
 			}
-			idx++;
 		}
+		balanceQueue.clear();
+	}
+
+	/**
+	 * Merge groups of four sibling leaves back into their parent where the
+	 * front has moved on: the leaves must be interior, and no active
+	 * candidate may lie within SimulationConstants.COARSENING_DISTANCE finest
+	 * cells of the parent. Repeats until nothing merges, so regions far from
+	 * the front coarsen by several levels.
+	 * 
+	 * @param active the candidates growth is chosen from, around which the
+	 *            tree stays as it is
+	 * @return the number of merges
+	 */
+	public int coarsen(List<QuadtreeNode> active) {
+		return coarsen(active, SimulationConstants.COARSENING_DISTANCE, Collections.<QuadtreeNode> emptyList(), 0);
+	}
+
+	/**
+	 * Same as coarsen(List) with two kinds of protected nodes: the tree stays
+	 * fine within distance finest cells of the nodes of near, and within
+	 * farDistance cells of those of far.
+	 */
+	public int coarsen(List<QuadtreeNode> near, int distance, List<QuadtreeNode> far, int farDistance) {
+		balanceQuadtree();
+		double cell = 1.0 / (1 << maxDepth);
+		List<ProximityGrid> zones = new ArrayList<>();
+		zones.add(new ProximityGrid(near, distance * cell));
+		if (!far.isEmpty()) {
+			zones.add(new ProximityGrid(far, farDistance * cell));
+		}
+		int merges = 0;
+		List<QuadtreeNode> parents = new ArrayList<>();
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			parents.clear();
+			for (QuadtreeNode leaf : leaves) {
+				// every sibling group once, from its first child
+				if (leaf.getParent() != null && leaf.getParent().getChild(0) == leaf) {
+					parents.add(leaf.getParent());
+				}
+			}
+			for (QuadtreeNode parent : parents) {
+				if (canMerge(parent, zones)) {
+					parent.merge();
+					merges++;
+					merged = true;
+				}
+			}
+		}
+		return merges;
+	}
+
+	private boolean canMerge(QuadtreeNode parent, List<ProximityGrid> zones) {
+		for (int i = 0; i < 4; i++) {
+			QuadtreeNode child = parent.getChild(i);
+			if (!child.isLeaf() || child.isBoundary() || child.getType() != QuadtreeNode.DEFAULT) {
+				return false;
+			}
+			// a subdivided neighbor would leave leaves two levels finer than
+			// the parent next to it
+			for (int dir : QuadtreeNode.NEIGHBOR_DIRS) {
+				QuadtreeNode neighbor = child.getNeighbor(dir);
+				if (neighbor != null && neighbor.hasChildren()) {
+					return false;
+				}
+			}
+		}
+		for (ProximityGrid zone : zones) {
+			if (zone.isNear(parent)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Called by QuadtreeNode.subdivide() for every new node
+	 */
+	void nodeCreated(QuadtreeNode node) {
+		neighborUpdates.add(node);
+		balanceQueue.add(node);
+
+		if (isOutside(node)) {
+			node.setPotential(0);
+			node.setBoundary(true);
+		}
+		addLeaf(node);
+	}
+
+	/**
+	 * Called by QuadtreeNode.subdivide() once the node has children
+	 */
+	void nodeSubdivided(QuadtreeNode node) {
+		removeLeaf(node);
+		frontier.remove(node);
+	}
+
+	/**
+	 * Called by QuadtreeNode.merge() for every child it removes
+	 */
+	void nodeRemoved(QuadtreeNode node) {
+		removeLeaf(node);
+		frontier.remove(node);
+		if (finger == node) {
+			finger = null;
+		}
+	}
+
+	/**
+	 * The records of the nodes
+	 */
+	NodeSlab getSlab() {
+		return slab;
+	}
+
+	/**
+	 * Called by QuadtreeNode.merge() once the node is a leaf again
+	 */
+	void nodeMerged(QuadtreeNode node) {
+		neighborUpdates.add(node);
+		addLeaf(node);
+	}
+
+	private void addLeaf(QuadtreeNode node) {
+		node.setLeafPosition(leaves.size());
+		leaves.add(node);
+		if (!node.isBoundary()) {
+			addInteriorLeaf(node);
+		}
+		if (node.getDepth() == maxDepth) {
+			node.setFinestPosition(finestLeaves.size());
+			finestLeaves.add(node);
+		}
+	}
+
+	private void removeLeaf(QuadtreeNode node) {
+		QuadtreeNode last = leaves.remove(leaves.size() - 1);
+		if (last != node) {
+			leaves.set(node.getLeafPosition(), last);
+			last.setLeafPosition(node.getLeafPosition());
+		}
+		node.setLeafPosition(-1);
+		removeInteriorLeaf(node);
+		if (node.getFinestPosition() >= 0) {
+			last = finestLeaves.remove(finestLeaves.size() - 1);
+			if (last != node) {
+				finestLeaves.set(node.getFinestPosition(), last);
+				last.setFinestPosition(node.getFinestPosition());
+			}
+			node.setFinestPosition(-1);
+		}
+	}
+
+	/**
+	 * Called by QuadtreeNode.setBoundary() when the flag changes
+	 */
+	void boundaryChanged(QuadtreeNode node) {
+		if (node.isBoundary()) {
+			frontier.remove(node);
+		}
+		if (node.getLeafPosition() < 0) {
+			return;
+		}
+		if (node.isBoundary()) {
+			removeInteriorLeaf(node);
+		} else {
+			addInteriorLeaf(node);
+		}
+	}
+
+	private void addInteriorLeaf(QuadtreeNode node) {
+		node.setInteriorPosition(interiorLeaves.size());
+		interiorLeaves.add(node);
+	}
+
+	private void removeInteriorLeaf(QuadtreeNode node) {
+		if (node.getInteriorPosition() < 0) {
+			return;
+		}
+		QuadtreeNode last = interiorLeaves.remove(interiorLeaves.size() - 1);
+		if (last != node) {
+			interiorLeaves.set(node.getInteriorPosition(), last);
+			last.setInteriorPosition(node.getInteriorPosition());
+		}
+		node.setInteriorPosition(-1);
+	}
+
+	/**
+	 * Called when the neighbor list of a leaf becomes stale
+	 */
+	void neighborListInvalidated(QuadtreeNode node) {
+		neighborUpdates.add(node);
 	}
 	
+	/**
+	 * Recompute the neighbor lists invalidated since the last call, i.e. those
+	 * of new leaves and of leaves next to a subdivided node.
+	 */
 	private void buildNeighbors() {
-		List<QuadtreeNode> leaves = getLeaves();
-		
-		for (QuadtreeNode node : leaves) {
-			node.populateNeighbors();
+		for (QuadtreeNode node : neighborUpdates) {
+			if (node.isLeaf()) {
+				node.updateNeighbors();
+			}
 		}
+		neighborUpdates.clear();
 	}
 	
-	public int solve() {
+	/**
+	 * Balance the quadtree, rebuild the neighbors and solve for the potential.
+	 * 
+	 * @return stats of the solve, which are also passed to the solver listeners
+	 */
+	public SolveStats solve() {
+		long treeUpdateStart = System.nanoTime();
 		balanceQuadtree();
 		buildNeighbors();
+		long treeUpdateNanos = System.nanoTime() - treeUpdateStart;
 		
 		List<QuadtreeNode> leaves = getInteriorLeaves();
 		
 		int numIterations = SimulationConstants.INTERATIONS;
+		int backend = intermediateSolverBackend;
 		if (solveFirstTime) {
 			numIterations = SimulationConstants.FIRST_TIME_SOLVE_ITERATIONS;
+			backend = solverBackend;
 			solveFirstTime = false;
 		}
-		PoissonEqSolver solver = new PoissonEqSolver(leaves, numIterations);
-		solver.solveCRS();
-		//return solver.solve();
-		return 0;
+		if (solver == null) {
+			solver = new PoissonEqSolver(leaves, numIterations);
+			solver.setPreconditioner(PoissonEqSolver.createPreconditioner(preconditioner));
+			solver.setIncremental(SimulationConstants.INCREMENTAL_SOLVE);
+			solver.setThreads(solverThreads);
+		} else {
+			solver.setLeaves(leaves);
+			solver.setIterations(numIterations);
+		}
+		switch (backend) {
+		case SimulationConstants.SOLVER_CSR:
+			solver.solveCSR();
+			break;
+		case SimulationConstants.SOLVER_MULTIGRID:
+			solver.solveMultigrid();
+			break;
+		case SimulationConstants.SOLVER_SOR:
+			solver.solveSOR(SimulationConstants.SOR_SWEEPS);
+			break;
+		case SimulationConstants.SOLVER_MIXED_PRECISION:
+			solver.solveMixedPrecision();
+			break;
+		default:
+			solver.solveCRS();
+			//solver.solve();
+		}
+
+		SolveStats stats = solver.getLastStats();
+		stats.treeUpdateNanos = treeUpdateNanos;
+		for (SolverListener listener : solverListeners) {
+			listener.solveFinished(stats);
+		}
+		return stats;
+	}
+
+	public void addSolverListener(SolverListener listener) {
+		solverListeners.add(listener);
+	}
+
+	public void removeSolverListener(SolverListener listener) {
+		solverListeners.remove(listener);
+	}
+	
+	/**
+	 * @param solverBackend one of the SimulationConstants.SOLVER_* constants,
+	 *            used for the first solve
+	 */
+	public void setSolverBackend(int solverBackend) {
+		this.solverBackend = solverBackend;
+	}
+	
+	/**
+	 * @param intermediateSolverBackend one of the SimulationConstants.SOLVER_*
+	 *            constants, used for every solve after the first
+	 */
+	public void setIntermediateSolverBackend(int intermediateSolverBackend) {
+		this.intermediateSolverBackend = intermediateSolverBackend;
+	}
+	
+	/**
+	 * @param preconditioner one of the SimulationConstants.PRECONDITIONER_* constants
+	 */
+	public void setPreconditioner(int preconditioner) {
+		this.preconditioner = preconditioner;
+		if (solver != null) {
+			solver.setPreconditioner(PoissonEqSolver.createPreconditioner(preconditioner));
+		}
+	}
+
+	/**
+	 * Update the potential only near recently changed cells: relax the
+	 * interior leaves within SimulationConstants.LOCAL_RELAXATION_RADIUS
+	 * neighbor steps of the seeds, keeping the rest of the field as it is.
+	 */
+	public void relaxAround(List<QuadtreeNode> seeds) {
+		List<QuadtreeNode> region = new ArrayList<>();
+		Set<QuadtreeNode> visited = new HashSet<>();
+		List<QuadtreeNode> ring = new ArrayList<>();
+		for (QuadtreeNode seed : seeds) {
+			if (seed.isLeaf() && visited.add(seed)) {
+				ring.add(seed);
+			}
+		}
+
+		for (int distance = 0; distance <= SimulationConstants.LOCAL_RELAXATION_RADIUS
+				&& !ring.isEmpty(); distance++) {
+			List<QuadtreeNode> next = new ArrayList<>();
+			for (QuadtreeNode node : ring) {
+				node.updateNeighbors();
+				if (!node.isBoundary()) {
+					region.add(node);
+				}
+				for (int i = 0; i < 8; i++) {
+					QuadtreeNode neighbor = node.getNeighborSlot(i);
+					if (neighbor != null && !neighbor.isBorder() && visited.add(neighbor)) {
+						next.add(neighbor);
+					}
+				}
+			}
+			ring = next;
+		}
+
+		PoissonEqSolver.relaxRegion(region, SimulationConstants.LOCAL_RELAXATION_SWEEPS);
 	}
 
 	private void generateNoiseAttraction(QuadtreeNode node) {
-		if (node.type != QuadtreeNode.DEFAULT) {
+		if (noise == null || node.getType() != QuadtreeNode.DEFAULT) {
 			return;
 		}
-		int x = (int) node.midX * (1 << maxDepth);
-		int y = (int) node.midY * (1 << maxDepth);
-		if (noise[x][y]) {
-			node.isBoundary = true;
-			node.potential = 0.5;
-			node.isAttractor = true;
-			node.isCandidate = false;
-			node.type = QuadtreeNode.ATTRACT;
+		int x = (int) (node.midX() * (1 << maxDepth));
+		int y = (int) (node.midY() * (1 << maxDepth));
+		if (x < noise.length && y < noise[x].length && noise[x][y]) {
+			node.setBoundary(true);
+			node.setPotential(0.5);
+			node.setAttractor(true);
+			node.setType(QuadtreeNode.ATTRACT);
+			node.markNeighborsDirty();
 			System.out.println("NOISE");
 		}
 	}
 	
 	public QuadtreeNode setAttraction(double x, double y) {
-		QuadtreeNode attractNode = insert(x, y);
-		if (attractNode.type != QuadtreeNode.DEFAULT) {
+		return makeAttractor(insert(x, y));
+	}
+
+	/**
+	 * Make every point an attractor, inserting them with insertAll()
+	 */
+	public List<QuadtreeNode> setAttractions(List<? extends Point2D> points) {
+		List<QuadtreeNode> attractNodes = insertAll(points);
+		for (QuadtreeNode attractNode : attractNodes) {
+			makeAttractor(attractNode);
+		}
+		return attractNodes;
+	}
+
+	private QuadtreeNode makeAttractor(QuadtreeNode attractNode) {
+		if (attractNode.getType() != QuadtreeNode.DEFAULT) {
 			System.out.println("An attraction point is already a start/terminating point.");
 			return attractNode;
 		}
-		attractNode.isBoundary = true;
-		attractNode.potential = SimulationConstants.ATTRACTOR_POTENTIAL;
-		attractNode.isCandidate = false;
-		attractNode.type = QuadtreeNode.ATTRACT;
+		attractNode.setBoundary(true);
+		attractNode.setPotential(SimulationConstants.ATTRACTOR_POTENTIAL);
+		attractNode.setType(QuadtreeNode.ATTRACT);
+		attractNode.markNeighborsDirty();
 		return attractNode;
 	}
 
 	public QuadtreeNode setStart(double x, double y) {
 		QuadtreeNode startNode = insert(x, y);
-		startNode.isBoundary = true;
-		startNode.potential = 0.0;
-		startNode.isCandidate = true;
-		startNode.type = QuadtreeNode.START;
+		startNode.setBoundary(true);
+		startNode.setPotential(0.0);
+		startNode.setType(QuadtreeNode.START);
+		startNode.markNeighborsDirty();
 		return startNode;
 	}
 
 	public QuadtreeNode setTermination(double x, double y) {
 		QuadtreeNode terminateNode = insert(x, y);
-		terminateNode.isBoundary = true;
-		terminateNode.potential = 1;
-		terminateNode.isCandidate = true;
-		terminateNode.type = QuadtreeNode.TERMINATE;
+		terminateNode.setBoundary(true);
+		terminateNode.setPotential(1);
+		terminateNode.setType(QuadtreeNode.TERMINATE);
+		terminateNode.markNeighborsDirty();
 		return terminateNode;
 	}
 
+	public void setSolverThreads(int solverThreads) {
+		this.solverThreads = solverThreads;
+		if (solver != null) {
+			solver.setThreads(solverThreads);
+		}
+	}
+
 	public int getMaxDepth() {
 		return maxDepth;
 	}
@@ -0,0 +1,15 @@
+package dbm;
+
+import java.io.IOException;
+
+/**
+ * Receives the finished simulations of an EnsembleRunner, one at a time and
+ * in the order they finish.
+ *
+ * @author rex
+ *
+ */
+public interface BoltSink {
+
+	void boltFinished(long seed, AdaptiveGrid simulation) throws IOException;
+}
@@ -0,0 +1,121 @@
+package dbm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs many independent simulations of the same config at once, one per
+ * thread. Simulation i draws all its randomness from new Random(firstSeed +
+ * i), so each bolt depends on its seed only, whatever the number of threads
+ * and the order they finish in. Finished simulations are handed to a
+ * BoltSink on the calling thread as they come, and dropped after.
+ *
+ * Usage: EnsembleRunner configFile outputDir count [threads [firstSeed [width height [maxParticles [batchSize]]]]]
+ *
+ * Bolts are written with AdaptiveGrid.writeLightning() to
+ * outputDir/bolt-seed.txt. Threads default to the number of processors; the
+ * other options are as for HeadlessRunner.
+ *
+ * @author rex
+ *
+ */
+public class EnsembleRunner {
+
+	private final SimulationConfig config;
+	private final int width;
+	private final int height;
+	private final long maxParticles;
+	private final int batchSize;
+	private final int threads;
+
+	EnsembleRunner(SimulationConfig config, int width, int height, long maxParticles, int batchSize, int threads) {
+		this.config = config;
+		this.width = width;
+		this.height = height;
+		this.maxParticles = maxParticles;
+		this.batchSize = batchSize;
+		this.threads = threads;
+	}
+
+	/**
+	 * Run count simulations with seeds firstSeed, firstSeed + 1, ..., and give
+	 * each to sink once it has finished
+	 */
+	public void run(int count, long firstSeed, BoltSink sink) throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CompletionService<Bolt> completion = new ExecutorCompletionService<>(executor);
+		try {
+			for (int i = 0; i < count; i++) {
+				long seed = firstSeed + i;
+				completion.submit(() -> simulate(seed));
+			}
+			for (int i = 0; i < count; i++) {
+				Bolt bolt;
+				try {
+					bolt = completion.take().get();
+				} catch (ExecutionException e) {
+					throw new IOException("Simulation failed", e.getCause());
+				}
+				sink.boltFinished(bolt.seed, bolt.simulation);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Bolt simulate(long seed) {
+		AdaptiveGrid simulation = new AdaptiveGrid(width, height, new Random(seed));
+		config.applyTo(simulation);
+		simulation.setBatchSize(batchSize);
+		HeadlessRunner.run(simulation, maxParticles);
+		return new Bolt(seed, simulation);
+	}
+
+	private static class Bolt {
+		final long seed;
+		final AdaptiveGrid simulation;
+
+		Bolt(long seed, AdaptiveGrid simulation) {
+			this.seed = seed;
+			this.simulation = simulation;
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 3) {
+			System.err.println("Usage: EnsembleRunner configFile outputDir count "
+					+ "[threads [firstSeed [width height [maxParticles [batchSize]]]]]");
+			System.exit(1);
+		}
+		File outputDir = new File(args[1]);
+		int count = Integer.parseInt(args[2]);
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		long firstSeed = args.length > 4 ? Long.parseLong(args[4]) : 0;
+		int width = args.length > 6 ? Integer.parseInt(args[5]) : SimulationConstants.WIDTH;
+		int height = args.length > 6 ? Integer.parseInt(args[6]) : SimulationConstants.HEIGHT;
+		long maxParticles = args.length > 7 ? Long.parseLong(args[7]) : (long) width * height;
+		int batchSize = args.length > 8 ? Integer.parseInt(args[8]) : SimulationConstants.BATCH_SIZE;
+
+		outputDir.mkdirs();
+		EnsembleRunner runner = new EnsembleRunner(SimulationConfig.read(new File(args[0])), width, height,
+				maxParticles, batchSize, threads);
+		long start = System.nanoTime();
+		runner.run(count, firstSeed, (seed, simulation) -> {
+			File file = new File(outputDir, "bolt-" + seed + ".txt");
+			try (Writer out = new BufferedWriter(new FileWriter(file))) {
+				simulation.writeLightning(out);
+			}
+			System.out.println("Written " + file);
+		});
+		System.out.printf("%d bolts in %.2f s on %d threads%n", count, (System.nanoTime() - start) / 1e9, threads);
+	}
+}
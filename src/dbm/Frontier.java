@@ -0,0 +1,140 @@
+package dbm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The growth sites: leaves next to the lightning that may be chosen for the
+ * next particle. Each node knows its position in the list, so adding and
+ * removing are O(1); a removed node is replaced by the last one, in the list
+ * as in the sampler of the weights potential^ETA.
+ *
+ * The tree removes a node once it becomes boundary or stops being a leaf, so
+ * the frontier holds exactly the live growth sites and stays proportional to
+ * the perimeter of the lightning.
+ *
+ * @author rex
+ *
+ */
+class Frontier {
+
+	private final List<QuadtreeNode> nodes = new ArrayList<>();
+	private final List<QuadtreeNode> nodesView = Collections.unmodifiableList(nodes);
+	/** Weights of the nodes, index for index */
+	private final GrowthSampler sampler = new GrowthSampler();
+	/** Nodes whose potential changed since the last refreshWeights() */
+	private final List<QuadtreeNode> stale = new ArrayList<>();
+
+	boolean contains(QuadtreeNode node) {
+		return node.getFrontierPosition() >= 0;
+	}
+
+	void add(QuadtreeNode node) {
+		if (contains(node)) {
+			return;
+		}
+		node.setFrontierPosition(nodes.size());
+		nodes.add(node);
+		sampler.add(growthWeight(node));
+	}
+
+	void remove(QuadtreeNode node) {
+		if (!contains(node)) {
+			return;
+		}
+		int position = node.getFrontierPosition();
+		QuadtreeNode last = nodes.remove(nodes.size() - 1);
+		if (last != node) {
+			nodes.set(position, last);
+			last.setFrontierPosition(position);
+		}
+		sampler.remove(position);
+		node.setFrontierPosition(-1);
+	}
+
+	/**
+	 * Called by a node of the frontier whose potential changed
+	 */
+	void potentialChanged(QuadtreeNode node) {
+		stale.add(node);
+	}
+
+	/**
+	 * Recompute the weights of the nodes whose potential changed. In the
+	 * order of the list, so the sampler sums them as a full pass would.
+	 */
+	void refreshWeights() {
+		stale.sort(Comparator.comparingInt(QuadtreeNode::getFrontierPosition));
+		for (QuadtreeNode node : stale) {
+			node.clearWeightDirty();
+			if (contains(node)) {
+				sampler.set(node.getFrontierPosition(), growthWeight(node));
+			}
+		}
+		stale.clear();
+	}
+
+	/**
+	 * Exclude the node from sample() until restore()
+	 */
+	void suppress(QuadtreeNode node) {
+		sampler.set(node.getFrontierPosition(), 0);
+	}
+
+	void restore(QuadtreeNode node) {
+		sampler.set(node.getFrontierPosition(), growthWeight(node));
+	}
+
+	double totalWeight() {
+		return sampler.total();
+	}
+
+	/**
+	 * @param target in [0, totalWeight())
+	 * @return a node drawn in proportion to the weights
+	 */
+	QuadtreeNode sample(double target) {
+		return nodes.get(sampler.sample(target));
+	}
+
+	QuadtreeNode get(int position) {
+		return nodes.get(position);
+	}
+
+	int size() {
+		return nodes.size();
+	}
+
+	boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+	/**
+	 * Add to sites the nodes whose weight is at least fraction of the
+	 * largest one: those growth may still pick
+	 */
+	void heavySites(double fraction, List<QuadtreeNode> sites) {
+		double largest = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			largest = Math.max(largest, sampler.weight(i));
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			if (sampler.weight(i) >= fraction * largest) {
+				sites.add(nodes.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Read-only live view of the nodes
+	 */
+	List<QuadtreeNode> getNodes() {
+		return nodesView;
+	}
+
+	private static double growthWeight(QuadtreeNode node) {
+		return Math.pow(Math.max(0, node.getPotential()), SimulationConstants.ETA);
+	}
+}
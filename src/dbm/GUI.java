@@ -100,25 +100,9 @@ class GUI implements MouseListener, MouseMotionListener, KeyListener {
 	    }
 
 	    try {
-	      java.util.Scanner s = new java.util.Scanner(file);
-	      
-	      double x = s.nextDouble();
-	      double y = s.nextDouble();
-	      simulation.addStart(x, y);
-	      
-	      x = s.nextDouble();
-	      y = s.nextDouble();
-	      simulation.addTermination(x, y);
-	      
-	      int numParticles = s.nextInt();
-	      
-	      for (int i = 0; i < numParticles; i++) {
-	        x = s.nextDouble();
-	        y = s.nextDouble();
-	        attractionPoints.add(new Point2D.Double(x, y));
-	      }
-	      simulation.addAttractionPoints(attractionPoints);
-	      s.close();
+	      SimulationConfig config = SimulationConfig.read(file);
+	      attractionPoints.addAll(config.attractionPoints);
+	      config.applyTo(simulation);
 
 	    } catch (Exception e) {
 	      e.printStackTrace();
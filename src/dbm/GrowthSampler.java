@@ -0,0 +1,98 @@
+package dbm;
+
+import java.util.Arrays;
+
+/**
+ * Weighted sampling of growth sites: a Fenwick (binary indexed) tree over the
+ * weights potential^ETA of the candidates, so that appending a candidate,
+ * changing its weight and drawing one in proportion to the weights all take
+ * O(log n), instead of a cumulative scan over all candidates per particle.
+ *
+ * Index i is the i-th node of the list the owner keeps alongside.
+ *
+ * @author rex
+ *
+ */
+class GrowthSampler {
+
+	private double[] weights = new double[16];
+	/** 1-based; tree[i] is the sum of the weights in (i - lowbit(i), i] */
+	private double[] tree = new double[17];
+	private int size;
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	void add(double weight) {
+		if (size == weights.length) {
+			weights = Arrays.copyOf(weights, 2 * size);
+			tree = Arrays.copyOf(tree, 2 * size + 1);
+		}
+		weights[size] = weight;
+		size++;
+		tree[size] = weight + prefixSum(size - 1) - prefixSum(size - (size & -size));
+	}
+
+	void set(int index, double weight) {
+		double delta = weight - weights[index];
+		weights[index] = weight;
+		for (int i = index + 1; i <= size; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * Remove the weight at index, moving the last one there as the owner does
+	 * with its list
+	 */
+	void remove(int index) {
+		set(index, weights[size - 1]);
+		// the tree entries of the indices before the last cover only those
+		size--;
+	}
+
+	double weight(int index) {
+		return weights[index];
+	}
+
+	double total() {
+		return prefixSum(size);
+	}
+
+	/**
+	 * @param target in [0, total())
+	 * @return the first index whose cumulative weight exceeds target
+	 */
+	int sample(double target) {
+		int position = 0;
+		for (int step = Integer.highestOneBit(Math.max(size, 1)); step > 0; step >>= 1) {
+			if (position + step <= size && tree[position + step] <= target) {
+				position += step;
+				target -= tree[position];
+			}
+		}
+		// rounding can carry a target close to the total past the last
+		// candidate of nonzero weight
+		position = Math.min(position, size - 1);
+		while (position > 0 && weights[position] == 0) {
+			position--;
+		}
+		return position;
+	}
+
+	/**
+	 * Sum of the first count weights
+	 */
+	private double prefixSum(int count) {
+		double sum = 0;
+		for (int i = count; i > 0; i -= i & -i) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+}
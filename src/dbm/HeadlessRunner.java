@@ -0,0 +1,71 @@
+package dbm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Runs a simulation without a window or GL context: loads a config in the
+ * format of lightning-config, calls AdaptiveGrid.addLeaf() in a loop until the
+ * lightning reaches the termination point, and writes the lightning with
+ * AdaptiveGrid.writeLightning().
+ *
+ * Usage: HeadlessRunner configFile outputFile [width height [maxParticles [batchSize]]]
+ *
+ * The grid is SimulationConstants.WIDTH x HEIGHT by default. The run also
+ * stops after maxParticles particles (by default width * height) or when no
+ * particle can be added. batchSize is passed to AdaptiveGrid.setBatchSize(),
+ * SimulationConstants.BATCH_SIZE by default.
+ *
+ * @author rex
+ *
+ */
+public class HeadlessRunner {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: HeadlessRunner configFile outputFile [width height [maxParticles [batchSize]]]");
+			System.exit(1);
+		}
+		int width = args.length > 3 ? Integer.parseInt(args[2]) : SimulationConstants.WIDTH;
+		int height = args.length > 3 ? Integer.parseInt(args[3]) : SimulationConstants.HEIGHT;
+		long maxParticles = args.length > 4 ? Long.parseLong(args[4]) : (long) width * height;
+		int batchSize = args.length > 5 ? Integer.parseInt(args[5]) : SimulationConstants.BATCH_SIZE;
+
+		SimulationConfig config = SimulationConfig.read(new File(args[0]));
+		AdaptiveGrid simulation = new AdaptiveGrid(width, height);
+		config.applyTo(simulation);
+		simulation.setBatchSize(batchSize);
+
+		long start = System.nanoTime();
+		long particles = run(simulation, maxParticles);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		try (Writer out = new BufferedWriter(new FileWriter(args[1]))) {
+			simulation.writeLightning(out);
+		}
+		System.out.printf("%d particles in %.2f s, %s, written to %s%n", particles, seconds,
+				simulation.hasTerminated() ? "terminated" : "not terminated", args[1]);
+	}
+
+	/**
+	 * Grow until termination, until no particle can be added or once
+	 * maxParticles particles have been added. With batches, the last
+	 * addLeaf() may go past maxParticles.
+	 *
+	 * @return the number of particles added
+	 */
+	static long run(AdaptiveGrid simulation, long maxParticles) {
+		int start = simulation.numParticles();
+		long particles = 0;
+		while (!simulation.hasTerminated() && particles < maxParticles) {
+			if (!simulation.addLeaf()) {
+				break;
+			}
+			particles = simulation.numParticles() - start;
+		}
+		return particles;
+	}
+}
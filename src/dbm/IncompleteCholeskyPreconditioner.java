@@ -0,0 +1,133 @@
+package dbm;
+
+import java.util.Arrays;
+
+/**
+ * Zero fill-in incomplete Cholesky preconditioner, IC(0). M = L * transpose(L)
+ * where L has the sparsity pattern of the lower triangle of the Laplacian.
+ * 
+ * The Laplacian of the quadtree is a diagonally dominant M-matrix, for which
+ * IC(0) does not break down.
+ * 
+ * @author rex
+ *
+ */
+class IncompleteCholeskyPreconditioner implements Preconditioner {
+
+	private SparseLaplacian laplacian;
+	/** L, stored at the lower triangle positions of the CSR arrays */
+	private double[] lower = new double[0];
+	private double[] y = new double[0];
+	/** rows to factor again, used by update() */
+	private boolean[] affected = new boolean[0];
+
+	@Override
+	public void setup(SparseLaplacian laplacian) {
+		ensureCapacity(laplacian);
+		for (int i = 0; i < laplacian.size; i++) {
+			factorRow(i);
+		}
+	}
+
+	/**
+	 * Factor again the changed rows and the rows after them that depend on
+	 * them: row i of L depends on the rows k < i among its columns.
+	 */
+	@Override
+	public void update(SparseLaplacian laplacian) {
+		ensureCapacity(laplacian);
+		int n = laplacian.size;
+		int first = n;
+		for (int k = 0; k < laplacian.changedCount; k++) {
+			int i = laplacian.changedRows[k];
+			affected[i] = true;
+			first = Math.min(first, i);
+		}
+		int[] colIdx = laplacian.colIdx;
+		int[] diagPtr = laplacian.diagPtr;
+		for (int i = first; i < n; i++) {
+			for (int p = laplacian.rowPtr[i]; p < diagPtr[i] && !affected[i]; p++) {
+				affected[i] = affected[colIdx[p]];
+			}
+			if (affected[i]) {
+				factorRow(i);
+			}
+		}
+		if (first < n) {
+			Arrays.fill(affected, first, n, false);
+		}
+	}
+
+	private void ensureCapacity(SparseLaplacian laplacian) {
+		this.laplacian = laplacian;
+		if (lower.length < laplacian.values.length) {
+			lower = Arrays.copyOf(lower, laplacian.values.length);
+		}
+		if (y.length < laplacian.rowPtr.length) {
+			y = new double[laplacian.rowPtr.length];
+			affected = new boolean[laplacian.rowPtr.length];
+		}
+	}
+
+	/**
+	 * Row i of L, from the rows before it
+	 */
+	private void factorRow(int i) {
+		int[] rowPtr = laplacian.rowPtr;
+		int[] colIdx = laplacian.colIdx;
+		int[] diagPtr = laplacian.diagPtr;
+		for (int p = rowPtr[i]; p <= diagPtr[i]; p++) {
+			int k = colIdx[p];
+			// sum of L(i, j) * L(k, j) over j < k, on the common pattern of rows i and k
+			double sum = 0;
+			int pi = rowPtr[i];
+			int pk = rowPtr[k];
+			while (pi < p && pk < diagPtr[k]) {
+				if (colIdx[pi] == colIdx[pk]) {
+					sum += lower[pi] * lower[pk];
+					pi++;
+					pk++;
+				} else if (colIdx[pi] < colIdx[pk]) {
+					pi++;
+				} else {
+					pk++;
+				}
+			}
+			if (k < i) {
+				lower[p] = (laplacian.values[p] - sum) / lower[diagPtr[k]];
+			} else {
+				double pivot = laplacian.values[p] - sum;
+				if (pivot <= 0) {
+					System.err.println("Incomplete Cholesky pivot is not positive at row " + i);
+					pivot = laplacian.values[p];
+				}
+				lower[p] = Math.sqrt(pivot);
+			}
+		}
+	}
+
+	@Override
+	public void apply(double[] r, double[] z) {
+		int[] rowPtr = laplacian.rowPtr;
+		int[] colIdx = laplacian.colIdx;
+		int[] diagPtr = laplacian.diagPtr;
+		int n = laplacian.size;
+
+		// L y = r
+		for (int i = 0; i < n; i++) {
+			double sum = r[i];
+			for (int p = rowPtr[i]; p < diagPtr[i]; p++) {
+				sum -= lower[p] * y[colIdx[p]];
+			}
+			y[i] = sum / lower[diagPtr[i]];
+		}
+
+		// transpose(L) z = y, column by column
+		for (int i = n - 1; i >= 0; i--) {
+			z[i] = y[i] / lower[diagPtr[i]];
+			for (int p = rowPtr[i]; p < diagPtr[i]; p++) {
+				y[colIdx[p]] -= lower[p] * z[i];
+			}
+		}
+	}
+}
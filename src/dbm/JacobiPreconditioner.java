@@ -0,0 +1,46 @@
+package dbm;
+
+import java.util.Arrays;
+
+/**
+ * Diagonal (Jacobi) preconditioner: M is the diagonal of the Laplacian, i.e.
+ * the center coefficient stencil[8] of every leaf.
+ * 
+ * @author rex
+ *
+ */
+class JacobiPreconditioner implements Preconditioner {
+
+	private double[] inverseDiagonal = new double[0];
+	private int size;
+
+	@Override
+	public void setup(SparseLaplacian laplacian) {
+		size = laplacian.size;
+		if (inverseDiagonal.length < size) {
+			inverseDiagonal = new double[laplacian.rowPtr.length];
+		}
+		for (int i = 0; i < size; i++) {
+			inverseDiagonal[i] = 1 / laplacian.values[laplacian.diagPtr[i]];
+		}
+	}
+
+	@Override
+	public void update(SparseLaplacian laplacian) {
+		size = laplacian.size;
+		if (inverseDiagonal.length < size) {
+			inverseDiagonal = Arrays.copyOf(inverseDiagonal, laplacian.rowPtr.length);
+		}
+		for (int k = 0; k < laplacian.changedCount; k++) {
+			int i = laplacian.changedRows[k];
+			inverseDiagonal[i] = 1 / laplacian.values[laplacian.diagPtr[i]];
+		}
+	}
+
+	@Override
+	public void apply(double[] r, double[] z) {
+		for (int i = 0; i < size; i++) {
+			z[i] = r[i] * inverseDiagonal[i];
+		}
+	}
+}
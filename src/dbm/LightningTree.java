@@ -1,10 +1,15 @@
 package dbm;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import javax.swing.event.ListSelectionEvent;
 
@@ -29,6 +34,9 @@ public class LightningTree {
 	
 	private int[] strokeWidth = {8, 5, 3, 2, 1};
 	
+	/** Source of the jitter, that of the simulation */
+	private final Random random;
+	
 	class TreeNode {
 		double x;
 		double y;
@@ -45,12 +53,12 @@ public class LightningTree {
 		public TreeNode(QuadtreeNode quadtreeNode, QuadtreeNode parentNode) {
 			parent = nodeMap.get(parentNode);
 			// jitter
-			double minX = quadtreeNode.leftX;
-			double maxX = quadtreeNode.rightX;
-			this.x = minX + Math.random() * (maxX - minX) / 2 + (maxX - minX) / 2;
-			double minY = quadtreeNode.bottomY;
-			double maxY = quadtreeNode.topY;
-			this.y = minY + Math.random() * (maxY - minY);
+			double minX = quadtreeNode.leftX();
+			double maxX = quadtreeNode.rightX();
+			this.x = minX + random.nextDouble() * (maxX - minX) / 2 + (maxX - minX) / 2;
+			double minY = quadtreeNode.bottomY();
+			double maxY = quadtreeNode.topY();
+			this.y = minY + random.nextDouble() * (maxY - minY);
 		}
 		
 		void addChild(TreeNode child) {
@@ -59,6 +67,11 @@ public class LightningTree {
 	}
 	
 	public LightningTree(QuadtreeNode startNode) {
+		this(startNode, new Random());
+	}
+	
+	public LightningTree(QuadtreeNode startNode, Random random) {
+		this.random = random;
 		root = new TreeNode(startNode, null);
 		nodeMap.put(startNode, root);
 	}
@@ -93,6 +106,24 @@ public class LightningTree {
 		gl.glLineWidth(1);
 	}
 	
+	/**
+	 * One line "x1 y1 x2 y2 saliency" per segment, parent first, where
+	 * saliency is that of the two ends added up as in drawTree(): 0 on the
+	 * main branch, up to 4 on minor branches.
+	 */
+	public void write(Writer out) throws IOException {
+		Deque<TreeNode> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			TreeNode node = stack.pop();
+			for (TreeNode child : node.children) {
+				out.write(node.x + " " + node.y + " " + child.x + " " + child.y + " "
+						+ (node.saliency + child.saliency) + "\n");
+				stack.push(child);
+			}
+		}
+	}
+	
 	public void analyzeSaliency() {
 		List<TreeNode> mainBranch = new ArrayList<>();
 		TreeNode currNode = terminatingNode;
@@ -0,0 +1,162 @@
+package dbm;
+
+/**
+ * Linear quadtree: every node of the tree is stored in a hash table under its
+ * locational code, its depth followed by the Morton (Z-order) interleaving of
+ * its cell coordinates at that depth. Neighbors are then found arithmetically:
+ * the cell next to (x, y) at depth d is looked up directly, and if the tree
+ * is coarser there, the lookup moves up one level at a time. In a balanced
+ * quadtree this takes at most two probes, whereas the pointer walk of
+ * QuadtreeNode.getNeighborAbove() etc. goes up to the nearest common ancestor
+ * and back down.
+ *
+ * The table uses open addressing with linear probing over primitive key
+ * arrays.
+ *
+ * @author rex
+ *
+ */
+class LinearQuadtreeIndex {
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	/** locational codes are never 0, so 0 marks an empty slot */
+	private static final long EMPTY = 0;
+	/** bits of the Morton code, enough for cell coordinates below 2^29 */
+	private static final int MORTON_BITS = 58;
+
+	private long[] keys = new long[INITIAL_CAPACITY];
+	private QuadtreeNode[] nodes = new QuadtreeNode[INITIAL_CAPACITY];
+	private int size;
+	/** Number of roots of the tree along x and y */
+	private final int rootsX;
+	private final int rootsY;
+
+	LinearQuadtreeIndex(int rootsX, int rootsY) {
+		this.rootsX = rootsX;
+		this.rootsY = rootsY;
+	}
+
+	void add(QuadtreeNode node) {
+		if (2 * (size + 1) > keys.length) {
+			resize(2 * keys.length);
+		}
+		if (put(locationalCode(node.getDepth(), node.getCellX(), node.getCellY()), node)) {
+			size++;
+		}
+	}
+
+	void remove(QuadtreeNode node) {
+		long key = locationalCode(node.getDepth(), node.getCellX(), node.getCellY());
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != key) {
+			if (keys[slot] == EMPTY) {
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = EMPTY;
+		nodes[slot] = null;
+		size--;
+		// entries after the hole may have probed past it, so put them again
+		for (slot = (slot + 1) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			long movedKey = keys[slot];
+			QuadtreeNode moved = nodes[slot];
+			keys[slot] = EMPTY;
+			nodes[slot] = null;
+			put(movedKey, moved);
+		}
+	}
+
+	/**
+	 * The node at the given depth and cell coordinates, or null if the tree is
+	 * coarser there
+	 */
+	QuadtreeNode get(int depth, int cellX, int cellY) {
+		long key = locationalCode(depth, cellX, cellY);
+		int mask = keys.length - 1;
+		for (int slot = hash(key) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return nodes[slot];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Same as the pointer walks of QuadtreeNode: the node of the same depth
+	 * offset by (dx, dy) cells if there is one, otherwise the leaf covering
+	 * that cell. Null outside the domain.
+	 */
+	QuadtreeNode neighbor(QuadtreeNode node, int dx, int dy) {
+		int x = node.getCellX() + dx;
+		int y = node.getCellY() + dy;
+		if (x < 0 || y < 0 || x >= rootsX << node.getDepth() || y >= rootsY << node.getDepth()) {
+			return null;
+		}
+		for (int depth = node.getDepth(); depth >= 0; depth--) {
+			QuadtreeNode found = get(depth, x, y);
+			if (found != null) {
+				return found;
+			}
+			x >>= 1;
+			y >>= 1;
+		}
+		return null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the key was not in the table
+	 */
+	private boolean put(long key, QuadtreeNode node) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				nodes[slot] = node;
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		nodes[slot] = node;
+		return true;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		QuadtreeNode[] oldNodes = nodes;
+		keys = new long[capacity];
+		nodes = new QuadtreeNode[capacity];
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldKeys[slot] != EMPTY) {
+				put(oldKeys[slot], oldNodes[slot]);
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+	}
+
+	static long locationalCode(int depth, int cellX, int cellY) {
+		return ((long) (depth + 1) << MORTON_BITS) | interleave(cellX) | (interleave(cellY) << 1);
+	}
+
+	/**
+	 * Spread the bits of x to the even bit positions
+	 */
+	private static long interleave(int x) {
+		long bits = x & 0xFFFFFFFFL;
+		bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+		bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+		bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		bits = (bits | (bits << 2)) & 0x3333333333333333L;
+		bits = (bits | (bits << 1)) & 0x5555555555555555L;
+		return bits;
+	}
+}
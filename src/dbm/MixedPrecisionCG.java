@@ -0,0 +1,187 @@
+package dbm;
+
+import java.util.function.DoubleConsumer;
+
+/**
+ * Conjugate gradient with single precision storage and iterative refinement in
+ * double precision.
+ *
+ * The matrix coefficients and the inner solver's residual, direction and
+ * correction vectors are float, which halves the memory traffic of the inner
+ * iterations; dot products are still accumulated in double. The outer loop
+ * computes the residual of the double solution with the double matrix, solves
+ * for a correction in single precision, and adds it in double, so the final
+ * tolerance is that of the double solvers.
+ *
+ * @author rex
+ *
+ */
+class MixedPrecisionCG {
+
+	/** The inner solve reduces its residual by this factor */
+	private static final double INNER_TOLERANCE = 1e-4;
+	private static final int MAX_INNER_ITERATIONS = 2000;
+
+	private SparseLaplacian laplacian;
+	private float[] values = new float[0];
+	private float[] inverseDiagonal = new float[0];
+
+	private float[] r = new float[0];
+	private float[] z = new float[0];
+	private float[] d = new float[0];
+	private float[] q = new float[0];
+	private float[] e = new float[0];
+
+	private int innerIterations;
+	private double maxResidual;
+
+	void setup(SparseLaplacian laplacian) {
+		this.laplacian = laplacian;
+		int n = laplacian.size;
+		// rows are stored in order, with room between them
+		int nnz = n == 0 ? 0 : laplacian.rowEnd[n - 1];
+		if (values.length < nnz) {
+			values = new float[laplacian.values.length];
+		}
+		if (r.length < n) {
+			int capacity = laplacian.rowPtr.length;
+			inverseDiagonal = new float[capacity];
+			r = new float[capacity];
+			z = new float[capacity];
+			d = new float[capacity];
+			q = new float[capacity];
+			e = new float[capacity];
+		}
+		for (int k = 0; k < nnz; k++) {
+			values[k] = (float) laplacian.values[k];
+		}
+		for (int i = 0; i < n; i++) {
+			inverseDiagonal[i] = (float) (1 / laplacian.values[laplacian.diagPtr[i]]);
+		}
+	}
+
+	/**
+	 * Refine x in place.
+	 *
+	 * @param residual work vector of at least n entries
+	 * @param residualHistory receives the residual 2-norm of each outer step
+	 * @return number of outer refinement steps
+	 */
+	int solve(double[] x, double[] residual, int maxIterations, double eps, double relativeTolerance,
+			DoubleConsumer residualHistory) {
+		int n = laplacian.size;
+		double rhsNorm = 0;
+		for (int i = 0; i < n; i++) {
+			rhsNorm += laplacian.rhs[i] * laplacian.rhs[i];
+		}
+		double targetNorm = relativeTolerance * relativeTolerance * rhsNorm;
+
+		innerIterations = 0;
+		int outer = 0;
+		while (true) {
+			// residual of the double solution, in double
+			laplacian.multiply(x, residual);
+			double maxR = 0;
+			double residualNorm = 0;
+			for (int i = 0; i < n; i++) {
+				residual[i] = laplacian.rhs[i] - residual[i];
+				maxR = Math.max(maxR, Math.abs(residual[i]));
+				residualNorm += residual[i] * residual[i];
+			}
+			residualHistory.accept(Math.sqrt(residualNorm));
+			maxResidual = maxR;
+			if (innerIterations >= maxIterations || maxR <= eps || residualNorm <= targetNorm) {
+				break;
+			}
+
+			for (int i = 0; i < n; i++) {
+				r[i] = (float) residual[i];
+			}
+			innerIterations += solveCorrection(n, residualNorm, Math.max(targetNorm,
+					INNER_TOLERANCE * INNER_TOLERANCE * residualNorm), eps, maxIterations - innerIterations);
+			for (int i = 0; i < n; i++) {
+				x[i] += e[i];
+			}
+			outer++;
+		}
+		return outer;
+	}
+
+	/**
+	 * Jacobi preconditioned CG in single precision for A e = r, from e = 0,
+	 * until the squared residual norm is below targetNorm or the maximum
+	 * residual below eps.
+	 */
+	private int solveCorrection(int n, double initialNorm, double targetNorm, double eps, int maxIterations) {
+		double deltaNew = 0;
+		for (int i = 0; i < n; i++) {
+			e[i] = 0;
+			z[i] = r[i] * inverseDiagonal[i];
+			d[i] = z[i];
+			deltaNew += (double) r[i] * z[i];
+		}
+
+		int iter = 0;
+		double residualNorm = initialNorm;
+		double maxR = Double.MAX_VALUE;
+		while (iter < Math.min(maxIterations, MAX_INNER_ITERATIONS) && residualNorm > targetNorm && maxR > eps) {
+			multiply(d, q);
+			double dq = 0;
+			for (int i = 0; i < n; i++) {
+				dq += (double) d[i] * q[i];
+			}
+			if (dq == 0) {
+				break;
+			}
+			float alpha = (float) (deltaNew / dq);
+
+			double deltaOld = deltaNew;
+			deltaNew = 0;
+			residualNorm = 0;
+			maxR = 0;
+			for (int i = 0; i < n; i++) {
+				e[i] += alpha * d[i];
+				r[i] -= alpha * q[i];
+				z[i] = r[i] * inverseDiagonal[i];
+				deltaNew += (double) r[i] * z[i];
+				residualNorm += (double) r[i] * r[i];
+				maxR = Math.max(maxR, Math.abs(r[i]));
+			}
+
+			float beta = (float) (deltaNew / deltaOld);
+			for (int i = 0; i < n; i++) {
+				d[i] = z[i] + beta * d[i];
+			}
+			iter++;
+		}
+		// at least one iteration so that the outer loop always progresses
+		return Math.max(iter, 1);
+	}
+
+	private void multiply(float[] x, float[] y) {
+		int[] rowPtr = laplacian.rowPtr;
+		int[] rowEnd = laplacian.rowEnd;
+		int[] colIdx = laplacian.colIdx;
+		for (int i = 0; i < laplacian.size; i++) {
+			double sum = 0;
+			for (int k = rowPtr[i]; k < rowEnd[i]; k++) {
+				sum += values[k] * x[colIdx[k]];
+			}
+			y[i] = (float) sum;
+		}
+	}
+
+	/**
+	 * Total inner iterations of the last solve
+	 */
+	int innerIterations() {
+		return innerIterations;
+	}
+
+	/**
+	 * Maximum absolute residual of the double solution after the last solve
+	 */
+	double maxResidual() {
+		return maxResidual;
+	}
+}
@@ -0,0 +1,226 @@
+package dbm;
+
+import java.util.Arrays;
+
+/**
+ * The state of the nodes of one tree in primitive arrays, one record per
+ * node: cell coordinates, depth, type and flags, the positions in the lists
+ * of the tree, and parent, children and neighbors as handles, which are the
+ * record numbers. A QuadtreeNode is only the handle of its record, so the
+ * heap holds a small object per node besides the records, instead of a node
+ * with lists of neighbors and children and a stencil array.
+ *
+ * The four children of a node have consecutive handles. Records are
+ * allocated in chunks of CHUNK_SIZE, so the slab grows without copying, and
+ * the children of a merged node are freed as a block that the next
+ * subdivision reuses, node objects included.
+ *
+ * Potential and rhs live in a separate double record. Both records are
+ * kept in heap arrays or, if the tree keeps its nodes off-heap, in the
+ * direct buffers of an OffHeapNodeStore, and then the slab allocates no
+ * arrays of its own.
+ *
+ * @author rex
+ *
+ */
+class NodeSlab {
+
+	static final int CELL_X = 0;
+	static final int CELL_Y = 1;
+	/** depth, type and flags, see the masks below */
+	static final int INFO = 2;
+	static final int IDX = 3;
+	static final int LEAF_POSITION = 4;
+	static final int INTERIOR_POSITION = 5;
+	static final int FINEST_POSITION = 6;
+	static final int FRONTIER_POSITION = 7;
+	static final int PARENT = 8;
+	/** handle of the first of the four children, or NONE */
+	static final int FIRST_CHILD = 9;
+	/** first of the 8 neighbor slots, each a handle, NONE or BORDER */
+	static final int NEIGHBORS = 10;
+	private static final int INT_FIELDS = NEIGHBORS + 8;
+
+	static final int POTENTIAL = 0;
+	static final int RHS = 1;
+	private static final int DOUBLE_FIELDS = 2;
+
+	/** no node */
+	static final int NONE = -1;
+	/** the border sentinel of the depth of the node */
+	static final int BORDER = -2;
+
+	static final int DEPTH_MASK = 0x1F;
+	static final int TYPE_SHIFT = 5;
+	static final int TYPE_MASK = 0x3 << TYPE_SHIFT;
+	static final int LEAF = 1 << 7;
+	static final int BOUNDARY = 1 << 8;
+	static final int ATTRACTOR = 1 << 9;
+	static final int NEIGHBORS_DIRTY = 1 << 10;
+	static final int STENCIL_DIRTY = 1 << 11;
+	static final int ROW_DIRTY = 1 << 12;
+	/** set once the neighbor slots were filled */
+	static final int HAS_NEIGHBORS = 1 << 13;
+	/** set while the frontier holds a stale weight of the node */
+	static final int WEIGHT_DIRTY = 1 << 14;
+
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** The tree of the nodes, null for the border sentinels */
+	final BalancedQuadtree tree;
+	/** Set if the tree keeps a linear index for neighbor finding, else null */
+	final LinearQuadtreeIndex index;
+	/** Off-heap storage of the records, or null for the heap */
+	final OffHeapNodeStore store;
+
+	private int[][] intChunks = new int[0][];
+	private double[][] doubleChunks = new double[0][];
+	private QuadtreeNode[] nodes = new QuadtreeNode[CHUNK_SIZE];
+	/** handles handed out so far, freed ones included */
+	private int used;
+	/** first handles of freed blocks of four children */
+	private int[] freeBlocks = new int[16];
+	private int freeCount;
+
+	NodeSlab(BalancedQuadtree tree, LinearQuadtreeIndex index, boolean offHeap) {
+		this.tree = tree;
+		this.index = index;
+		this.store = offHeap ? new OffHeapNodeStore(INT_FIELDS, DOUBLE_FIELDS) : null;
+	}
+
+	/**
+	 * @return the handle of a new node with a cleared record
+	 */
+	int allocate() {
+		int handle = used++;
+		grow(used);
+		clear(handle);
+		return handle;
+	}
+
+	/**
+	 * @return the first of four consecutive handles with cleared records
+	 */
+	int allocateChildren() {
+		int first;
+		if (freeCount > 0) {
+			first = freeBlocks[--freeCount];
+		} else {
+			first = used;
+			used += 4;
+			grow(used);
+		}
+		for (int i = 0; i < 4; i++) {
+			clear(first + i);
+		}
+		return first;
+	}
+
+	/**
+	 * Return the block of four children starting at first for reuse
+	 */
+	void freeChildren(int first) {
+		if (freeCount == freeBlocks.length) {
+			freeBlocks = Arrays.copyOf(freeBlocks, 2 * freeCount);
+		}
+		freeBlocks[freeCount++] = first;
+	}
+
+	/**
+	 * The node of a handle, created with its record and kept for it
+	 */
+	QuadtreeNode node(int handle) {
+		return nodes[handle];
+	}
+
+	int getInt(int handle, int field) {
+		if (store != null) {
+			return store.getInt(handle, field);
+		}
+		return intChunks[handle >>> CHUNK_BITS][(handle & CHUNK_MASK) * INT_FIELDS + field];
+	}
+
+	void setInt(int handle, int field, int value) {
+		if (store != null) {
+			store.setInt(handle, field, value);
+			return;
+		}
+		intChunks[handle >>> CHUNK_BITS][(handle & CHUNK_MASK) * INT_FIELDS + field] = value;
+	}
+
+	boolean getFlag(int handle, int flag) {
+		return (getInt(handle, INFO) & flag) != 0;
+	}
+
+	void setFlag(int handle, int flag, boolean value) {
+		int info = getInt(handle, INFO);
+		setInt(handle, INFO, value ? info | flag : info & ~flag);
+	}
+
+	double getDouble(int handle, int field) {
+		if (store != null) {
+			return store.getDouble(handle, field);
+		}
+		return doubleChunks[handle >>> CHUNK_BITS][(handle & CHUNK_MASK) * DOUBLE_FIELDS + field];
+	}
+
+	void setDouble(int handle, int field, double value) {
+		if (store != null) {
+			store.setDouble(handle, field, value);
+		} else {
+			doubleChunks[handle >>> CHUNK_BITS][(handle & CHUNK_MASK) * DOUBLE_FIELDS + field] = value;
+		}
+	}
+
+	/**
+	 * Number of nodes in use
+	 */
+	int size() {
+		return used - 4 * freeCount;
+	}
+
+	/**
+	 * Number of nodes the tree would have if no block was free, i.e. the
+	 * most it had
+	 */
+	int capacity() {
+		return used;
+	}
+
+	private void clear(int handle) {
+		if (store != null) {
+			for (int field = 0; field < INT_FIELDS; field++) {
+				store.setInt(handle, field, field == INFO ? 0 : NONE);
+			}
+		} else {
+			int[] ints = intChunks[handle >>> CHUNK_BITS];
+			int start = (handle & CHUNK_MASK) * INT_FIELDS;
+			Arrays.fill(ints, start, start + INT_FIELDS, NONE);
+			ints[start + INFO] = 0;
+		}
+		setDouble(handle, POTENTIAL, 0);
+		setDouble(handle, RHS, 0);
+	}
+
+	private void grow(int size) {
+		if (store != null) {
+			store.ensureCapacity(size);
+		} else {
+			while (intChunks.length * CHUNK_SIZE < size) {
+				int chunk = intChunks.length;
+				intChunks = Arrays.copyOf(intChunks, chunk + 1);
+				intChunks[chunk] = new int[CHUNK_SIZE * INT_FIELDS];
+				doubleChunks = Arrays.copyOf(doubleChunks, chunk + 1);
+				doubleChunks[chunk] = new double[CHUNK_SIZE * DOUBLE_FIELDS];
+			}
+		}
+		if (nodes.length < size) {
+			nodes = Arrays.copyOf(nodes, Math.max(size, 2 * nodes.length));
+		}
+		for (int handle = size - 1; handle >= 0 && nodes[handle] == null; handle--) {
+			nodes[handle] = new QuadtreeNode(this, handle);
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package dbm;
 
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -18,11 +20,26 @@ import za.co.luma.math.sampling.UniformPoissonDiskSampler;
  */
 public class NoiseSampler {
 
+	private static final int POINTS_TO_GENERATE = 30;
+
+	private final Random random;
+
+	public NoiseSampler() {
+		this(new Random());
+	}
+
+	/**
+	 * Sample with the given generator, e.g. a seeded one for a reproducible run
+	 */
+	public NoiseSampler(Random random) {
+		this.random = random;
+	}
+
 	public boolean[][] poissonDiskSample(int w, int h, int r) {
 		
 		boolean[][] noise = new boolean[w][h];
 		
-		Sampler<Vector2DDouble> sampler = new UniformPoissonDiskSampler(0, 0, w, h, r);
+		Sampler<Vector2DDouble> sampler = new UniformPoissonDiskSampler(0, 0, w, h, r, POINTS_TO_GENERATE, random);
 		List<Vector2DDouble> pointList = sampler.sample();
 		
 		for (Vector2DDouble point : pointList)
@@ -33,13 +50,17 @@ public class NoiseSampler {
 	}
 	
 	public void sampleNoise(int w, int h, int r, BalancedQuadtree quadtree) {
-		Sampler<Vector2DDouble> sampler = new UniformPoissonDiskSampler(0, 0, w, h, r);
+		Sampler<Vector2DDouble> sampler = new UniformPoissonDiskSampler(0, 0, w, h, r, POINTS_TO_GENERATE, random);
 		List<Vector2DDouble> pointList = sampler.sample();
 		
+		// from grid cells to the coordinates of the tree, whose roots have side 1
+		double cells = 1 << quadtree.getMaxDepth();
+		List<Point2D> points = new ArrayList<>(pointList.size());
 		for (Vector2DDouble point : pointList)
 		{			
-			quadtree.insert(point.x, point.y);
+			points.add(new Point2D.Double(point.x / cells, point.y / cells));
 		}
+		quadtree.insertAll(points);
 	}
 	
 	public static void main(String[] args) {
@@ -0,0 +1,75 @@
+package dbm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Off-heap storage for the records of a NodeSlab: the int record of a node
+ * (cell coordinates, depth, type and flags, list positions and the handles
+ * of parent, children and neighbors) and its double record of potential and
+ * rhs, in direct buffers outside the Java heap, under the handle of the
+ * node. With a store the slab keeps no records of its own, so the garbage
+ * collector has neither geometry nor potentials to trace or copy.
+ *
+ * Records are allocated in chunks of CHUNK_SIZE, so the store grows without
+ * copying. Handles of merged away nodes are reused by the slab, and so are
+ * their records.
+ *
+ * @author rex
+ *
+ */
+class OffHeapNodeStore {
+
+	private static final int CHUNK_BITS = 14;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final int intFields;
+	private final int doubleFields;
+	private final List<IntBuffer> intChunks = new ArrayList<>();
+	private final List<DoubleBuffer> doubleChunks = new ArrayList<>();
+
+	OffHeapNodeStore(int intFields, int doubleFields) {
+		this.intFields = intFields;
+		this.doubleFields = doubleFields;
+	}
+
+	/**
+	 * Make room for the records of handles below size
+	 */
+	void ensureCapacity(int size) {
+		while (intChunks.size() * CHUNK_SIZE < size) {
+			intChunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE * intFields * Integer.BYTES)
+					.order(ByteOrder.nativeOrder()).asIntBuffer());
+			doubleChunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE * doubleFields * Double.BYTES)
+					.order(ByteOrder.nativeOrder()).asDoubleBuffer());
+		}
+	}
+
+	int getInt(int handle, int field) {
+		return intChunks.get(handle >>> CHUNK_BITS).get((handle & CHUNK_MASK) * intFields + field);
+	}
+
+	void setInt(int handle, int field, int value) {
+		intChunks.get(handle >>> CHUNK_BITS).put((handle & CHUNK_MASK) * intFields + field, value);
+	}
+
+	double getDouble(int handle, int field) {
+		return doubleChunks.get(handle >>> CHUNK_BITS).get((handle & CHUNK_MASK) * doubleFields + field);
+	}
+
+	void setDouble(int handle, int field, double value) {
+		doubleChunks.get(handle >>> CHUNK_BITS).put((handle & CHUNK_MASK) * doubleFields + field, value);
+	}
+
+	/**
+	 * Off-heap memory reserved so far
+	 */
+	long bytes() {
+		return (long) intChunks.size() * CHUNK_SIZE * (intFields * Integer.BYTES + doubleFields * Double.BYTES);
+	}
+}
@@ -1,9 +1,8 @@
 package dbm;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import javax.xml.soap.Node;
 
 import org.la4j.LinearAlgebra;
 import org.la4j.Matrix;
@@ -13,8 +12,21 @@ import org.la4j.matrix.sparse.CRSMatrix;
 import org.la4j.vector.dense.BasicVector;
 
 /**
- * Numerical solver for Poisson PDE on the balanced quadtree, using Incomplete
- * Cholesky Conjugate Gradient.
+ * Numerical solver for Poisson PDE on the interior leaves of the balanced
+ * quadtree, with several backends:
+ * 
+ * solveCSR() is preconditioned conjugate gradient on a SparseLaplacian kept
+ * between solves, updated row by row when incremental. The preconditioner is
+ * pluggable, see setPreconditioner() and SimulationConstants.PRECONDITIONER:
+ * none (plain conjugate gradient), Jacobi, incomplete Cholesky IC(0), or a
+ * multigrid V-cycle over the quadtree hierarchy. solveMultigrid() always uses
+ * the latter.
+ * 
+ * solveMixedPrecision() iterates in single precision with double precision
+ * refinement, solveSOR() runs a fixed number of multicolor SOR sweeps,
+ * relaxRegion() relaxes only around recent changes, and solveCRS() and solve()
+ * are the original la4j direct solve and plain conjugate gradient, kept for
+ * comparison.
  * 
  * @author rex
  *
@@ -24,37 +36,119 @@ public class PoissonEqSolver {
 	private static final double EPS = 1e-4;
 
 	private List<QuadtreeNode> leaves;
-	private List<Double> residuals;
 	private int iterations;
-	private List<Double> qCG;
+
+	private SparseLaplacian laplacian = new SparseLaplacian();
+	/** the preconditioner the changes of the laplacian were last given to */
+	private Preconditioner preparedPreconditioner;
+	/** null for plain conjugate gradient */
+	private Preconditioner preconditioner = createPreconditioner(SimulationConstants.PRECONDITIONER);
+	/** if true, only stencils flagged as dirty are recomputed */
+	private boolean incremental = false;
+	private double relativeTolerance = SimulationConstants.RELATIVE_TOLERANCE;
+	private double absoluteTolerance = SimulationConstants.ABSOLUTE_TOLERANCE;
+	private QuadtreeMultigrid multigrid;
+	private MulticolorSOR sor;
+	private MixedPrecisionCG mixedPrecision;
+	private SolverKernels kernels = new SolverKernels(SimulationConstants.SOLVER_THREADS);
+
+	/** conjugate gradient work vectors, reused between solves */
+	private double[] x = new double[0];
+	private double[] r = new double[0];
+	private double[] z = new double[0];
+	private double[] d = new double[0];
+	private double[] q = new double[0];
+
+	private SolveStats lastStats;
+	/** residual 2-norms of the solve in progress */
+	private double[] residualHistory = new double[64];
+	private int historySize;
+	private long solveStart;
+	private long allocationStart;
+	private long assemblyNanos;
+	private double finalMaxResidual;
 
 	public PoissonEqSolver(List<QuadtreeNode> leaves, int iterations) {
+		this.iterations = iterations;
+		setLeaves(leaves);
+	}
+
+	/**
+	 * Solve for a new set of interior leaves, e.g. after the quadtree has
+	 * grown. Work storage is kept.
+	 */
+	public void setLeaves(List<QuadtreeNode> leaves) {
 		this.leaves = leaves;
+	}
+
+	public void setIterations(int iterations) {
 		this.iterations = iterations;
-		residuals = new ArrayList<>();
-		qCG = new ArrayList<>();
-		for (int i = 0; i < leaves.size(); i++) {
-			qCG.add(0.0);
+	}
+
+	/**
+	 * @param incremental if true, solveCSR() recomputes only the stencils of
+	 *            leaves flagged by QuadtreeNode.isStencilDirty()
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Number of threads for the vector and matrix-vector kernels of the
+	 * conjugate gradient. Results do not depend on it.
+	 */
+	public void setThreads(int threads) {
+		if (threads != kernels.getThreads()) {
+			kernels.shutdown();
+			kernels = new SolverKernels(threads);
 		}
 	}
 
+	/**
+	 * The conjugate gradient solves stop as soon as either tolerance is met,
+	 * see solveCSR(). A tight relative tolerance therefore only takes effect
+	 * with a smaller absolute tolerance, or none.
+	 */
+	public void setRelativeTolerance(double relativeTolerance) {
+		this.relativeTolerance = relativeTolerance;
+	}
+
+	/**
+	 * @param absoluteTolerance largest residual of any leaf at which the
+	 *            conjugate gradient solves stop; 0 to stop on the relative
+	 *            tolerance only
+	 */
+	public void setAbsoluteTolerance(double absoluteTolerance) {
+		this.absoluteTolerance = absoluteTolerance;
+	}
+
 	public int solve() {
+		startStats();
 		int iter = 0;
 
+		long assemblyStart = System.nanoTime();
 		for (QuadtreeNode node : leaves) {
 			node.computeStencil();
 		}
+		assemblyNanos = System.nanoTime() - assemblyStart;
 
 		assignIndex();
 
-		residual();
-		List<Double> directions = new ArrayList<>(residuals);
+		int n = leaves.size();
+		ensureCapacity(n);
+		double[] residuals = r;
+		double[] directions = d;
+		double[] qCG = q;
+
+		double initialMaxR = residual();
+		System.arraycopy(residuals, 0, directions, 0, n);
 
 		double deltaNew = 0;
 
-		for (int i = 0; i < leaves.size(); i++) {
-			deltaNew += residuals.get(i) * residuals.get(i);
+		for (int i = 0; i < n; i++) {
+			deltaNew += residuals[i] * residuals[i];
 		}
+		recordResidual(Math.sqrt(deltaNew));
 
 		//double deltaInit = deltaNew;
 		// for determining convergence
@@ -62,24 +156,23 @@ public class PoissonEqSolver {
 
 		while (iter < iterations && maxR > EPS) {
 			// q = Ad
-			for (int j = 0; j < leaves.size(); j++) {
+			for (int j = 0; j < n; j++) {
 				QuadtreeNode node = leaves.get(j);
 				double neighborSum = 0;
-				for (int dir = 0; dir < 4; dir++) {
-					neighborSum += directions.get(node.neighbors.get(2 * dir).idx) * node.stencil.get(2 * dir);
-					if (node.neighbors.get(2 * dir + 1) != null) {
-						neighborSum += directions.get(node.neighbors.get(2 * dir + 1).idx)
-								* node.stencil.get(2 * dir + 1);
+				for (int dir = 0; dir < 8; dir++) {
+					QuadtreeNode neighbor = node.getNeighborSlot(dir);
+					if (neighbor != null && !neighbor.isBoundary()) {
+						neighborSum += directions[neighbor.getIdx()] * node.getStencil(dir);
 					}
 				}
-				qCG.set(j, -neighborSum + directions.get(j) * node.stencil.get(8));
+				qCG[j] = -neighborSum + directions[j] * node.getStencil(8);
 			}
 
 			// alpha: the step size at current iteration
 			// alpha = deltaNew / (transpose(d) * q)
 			double alpha = 0;
-			for (int i = 0; i < directions.size(); i++) {
-				alpha += directions.get(i) * qCG.get(i);
+			for (int i = 0; i < n; i++) {
+				alpha += directions[i] * qCG[i];
 			}
 			if (Math.abs(alpha) > EPS) {
 				alpha = deltaNew / alpha;
@@ -87,18 +180,17 @@ public class PoissonEqSolver {
 
 			// Update x in direction specified by directions by amount alpha
 			// x = x + alpha * d
-			for (int i = 0; i < leaves.size(); i++) {
-				leaves.get(i).potential += alpha * directions.get(i);
+			for (int i = 0; i < n; i++) {
+				leaves.get(i).setPotential(leaves.get(i).getPotential() + alpha * directions[i]);
 			}
 
 			// Update residual
 			// r = r - alpha * q
 			maxR = 0;
-			for (int i = 0; i < leaves.size(); i++) {
-				double residual = residuals.get(i) - alpha * qCG.get(i);
-				residuals.set(i, residual);
-				if (Math.abs(residual) > maxR) {
-					maxR = Math.abs(residual);
+			for (int i = 0; i < n; i++) {
+				residuals[i] -= alpha * qCG[i];
+				if (Math.abs(residuals[i]) > maxR) {
+					maxR = Math.abs(residuals[i]);
 				}
 			}
 
@@ -106,25 +198,28 @@ public class PoissonEqSolver {
 
 			// Update delta to the 2-norm of residual
 			deltaNew = 0;
-			for (double res : residuals) {
-				deltaNew += res * res;
+			for (int i = 0; i < n; i++) {
+				deltaNew += residuals[i] * residuals[i];
 			}
+			recordResidual(Math.sqrt(deltaNew));
 
 			// beta = deltaNew / deltaOld
 			double beta = deltaNew / deltaOld;
 
 			// Update directions
 			// d = r + beta * d
-			for (int i = 0; i < directions.size(); i++) {
-				directions.set(i, residuals.get(i) + beta * directions.get(i));
+			for (int i = 0; i < n; i++) {
+				directions[i] = residuals[i] + beta * directions[i];
 			}
 			iter++;
 		}
-		System.out.println("Iteration   " + iter + "  MAXR   " + maxR);
-		return iter;
+		finalMaxResidual = iter > 0 ? maxR : initialMaxR;
+		return finishStats("cg", iter, false);
 	}
 	
 	public void solveCRS() {
+		startStats();
+		long assemblyStart = System.nanoTime();
 		Matrix A = new CRSMatrix(leaves.size(), leaves.size());
 		Vector b = new BasicVector(leaves.size());
 		assignIndex();
@@ -132,49 +227,336 @@ public class PoissonEqSolver {
 			node.computeStencil();
 		}
 		for (int i = 0; i < leaves.size(); i++) {
-			for (int j = 0; j < leaves.get(i).neighbors.size(); j++) {
-				QuadtreeNode neighbor = leaves.get(i).neighbors.get(j);
-				if (neighbor != null) {
-					A.set(i, neighbor.idx, -leaves.get(i).stencil.get(j));
+			for (int j = 0; j < 8; j++) {
+				QuadtreeNode neighbor = leaves.get(i).getNeighborSlot(j);
+				if (neighbor != null && !neighbor.isBoundary()) {
+					A.set(i, neighbor.getIdx(), -leaves.get(i).getStencil(j));
 				}
 			}
-			A.set(i, i, leaves.get(i).stencil.get(8));
-			b.set(i, leaves.get(i).rhs);
+			A.set(i, i, leaves.get(i).getStencil(8));
+			b.set(i, leaves.get(i).getRhs());
 		}
+		assemblyNanos = System.nanoTime() - assemblyStart;
 		LinearSystemSolver solver = A.withSolver(LinearAlgebra.FORWARD_BACK_SUBSTITUTION);
 		Vector x = solver.solve(b);
 		for (int i = 0; i < leaves.size(); i++) {
-			leaves.get(i).potential = x.get(i);
+			leaves.get(i).setPotential(x.get(i));
+		}
+		finishStats("la4j", 0, false);
+	}
+
+	/**
+	 * Preconditioned conjugate gradient on the quadtree Laplacian assembled in
+	 * CSR form. Warm starts from the current potentials of the leaves, and
+	 * stops as soon as either criterion is met: the maximum residual is at
+	 * most the absolute tolerance, or the residual norm is at most the relative
+	 * tolerance times the norm of the rhs.
+	 * 
+	 * @return number of iterations
+	 */
+	public int solveCSR() {
+		startStats();
+		assemble();
+		return finishStats("csr", conjugateGradient(preconditioner), true);
+	}
+
+	/**
+	 * Conjugate gradient preconditioned by a multigrid V-cycle over the
+	 * quadtree hierarchy (see QuadtreeMultigrid), whose iteration count stays
+	 * flat as the grid is refined.
+	 * 
+	 * @return number of iterations
+	 */
+	public int solveMultigrid() {
+		startStats();
+		assemble();
+		if (multigrid == null) {
+			multigrid = new QuadtreeMultigrid();
+		}
+		return finishStats("multigrid", conjugateGradient(multigrid), true);
+	}
+
+	/**
+	 * Conjugate gradient with float storage and double precision iterative
+	 * refinement, see MixedPrecisionCG. Same stopping criteria as solveCSR().
+	 * 
+	 * @return total number of single precision iterations
+	 */
+	public int solveMixedPrecision() {
+		startStats();
+		assemble();
+		if (mixedPrecision == null) {
+			mixedPrecision = new MixedPrecisionCG();
+		}
+		mixedPrecision.setup(laplacian);
+
+		gatherPotentials();
+		mixedPrecision.solve(x, r, iterations, absoluteTolerance, relativeTolerance, this::recordResidual);
+		finalMaxResidual = mixedPrecision.maxResidual();
+		scatterPotentials();
+		return finishStats("mixed", mixedPrecision.innerIterations(), true);
+	}
+
+	/**
+	 * A fixed number of multicolor SOR sweeps from the current potentials, for
+	 * approximate solves between tight ones; see MulticolorSOR.
+	 * 
+	 * @return number of sweeps
+	 */
+	public int solveSOR(int sweeps) {
+		startStats();
+		assemble();
+		if (sor == null) {
+			sor = new MulticolorSOR(SimulationConstants.SOR_OMEGA);
+		}
+		sor.setup(laplacian);
+
+		gatherPotentials();
+		sor.sweep(x, sweeps, kernels);
+		scatterPotentials();
+		return finishStats("sor", sweeps, true);
+	}
+
+	/**
+	 * Gauss-Seidel sweeps over a region of interior leaves, updating their
+	 * potentials in place. Leaves outside the region keep their potential and
+	 * act as fixed values. Neighbors of the region must be populated.
+	 */
+	static void relaxRegion(List<QuadtreeNode> region, int sweeps) {
+		for (QuadtreeNode node : region) {
+			node.computeStencil();
+		}
+		for (int s = 0; s < sweeps; s++) {
+			for (QuadtreeNode node : region) {
+				double sum = node.getRhs();
+				for (int j = 0; j < 8; j++) {
+					QuadtreeNode neighbor = node.getNeighborSlot(j);
+					if (neighbor != null && !neighbor.isBoundary()) {
+						sum += node.getStencil(j) * neighbor.getPotential();
+					}
+				}
+				node.setPotential(sum / node.getStencil(8));
+			}
+		}
+	}
+
+	/**
+	 * Bring the CSR laplacian up to date. In incremental mode, leaves keep
+	 * their rows between solves, and only the rows around the leaves that
+	 * changed are assembled again, see SparseLaplacian.update(); otherwise
+	 * every stencil and row is.
+	 */
+	private void assemble() {
+		long start = System.nanoTime();
+		if (incremental) {
+			laplacian.update(leaves);
+		} else {
+			for (QuadtreeNode node : leaves) {
+				node.computeStencil();
+			}
+			laplacian.assemble(leaves);
+		}
+		assemblyNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Set up the preconditioner for the current matrix, or only update it for
+	 * the rows that changed since it was last set up or updated
+	 */
+	private void setupPreconditioner(Preconditioner preconditioner) {
+		if (preconditioner != preparedPreconditioner || laplacian.restructured) {
+			preconditioner.setup(laplacian);
+		} else if (laplacian.changedCount > 0) {
+			preconditioner.update(laplacian);
+		}
+		preparedPreconditioner = preconditioner;
+		laplacian.clearChanges();
+	}
+
+	/**
+	 * x = the potentials of the rows of the laplacian, 0 for identity rows
+	 */
+	private void gatherPotentials() {
+		int n = laplacian.size;
+		ensureCapacity(n);
+		for (int i = 0; i < n; i++) {
+			QuadtreeNode node = laplacian.nodeAt(i);
+			x[i] = node == null ? 0 : node.getPotential();
+		}
+	}
+
+	private void scatterPotentials() {
+		for (int i = 0; i < laplacian.size; i++) {
+			QuadtreeNode node = laplacian.nodeAt(i);
+			if (node != null) {
+				node.setPotential(x[i]);
+			}
+		}
+	}
+
+	private int conjugateGradient(Preconditioner preconditioner) {
+		if (preconditioner != null) {
+			setupPreconditioner(preconditioner);
+		}
+
+		int n = laplacian.size;
+		gatherPotentials();
+		double[] z = preconditioner == null ? r : this.z;
+
+		// r = b - Ax
+		kernels.multiply(laplacian, x, r);
+		double residualNorm = kernels.residual(laplacian.rhs, r, n);
+		double maxR = kernels.maxResidual();
+		double targetNorm = relativeTolerance * relativeTolerance * kernels.dot(laplacian.rhs, laplacian.rhs, n);
+		if (preconditioner != null) {
+			preconditioner.apply(r, z);
+		}
+		System.arraycopy(z, 0, d, 0, n);
+		double deltaNew = kernels.dot(r, z, n);
+		recordResidual(Math.sqrt(residualNorm));
+
+		int iter = 0;
+		while (iter < iterations && maxR > absoluteTolerance && residualNorm > targetNorm) {
+			// q = Ad
+			kernels.multiply(laplacian, d, q);
+
+			double dq = kernels.dot(d, q, n);
+			if (dq == 0) {
+				break;
+			}
+			double alpha = deltaNew / dq;
+
+			// x = x + alpha * d, r = r - alpha * q
+			residualNorm = kernels.update(alpha, x, d, r, q, n);
+			maxR = kernels.maxResidual();
+			recordResidual(Math.sqrt(residualNorm));
+
+			// z = inverse(M) * r
+			if (preconditioner != null) {
+				preconditioner.apply(r, z);
+			}
+			double deltaOld = deltaNew;
+			deltaNew = kernels.dot(r, z, n);
+
+			// d = z + beta * d
+			kernels.xpby(z, deltaNew / deltaOld, d, n);
+			iter++;
+		}
+		finalMaxResidual = maxR;
+		scatterPotentials();
+		return iter;
+	}
+
+	/**
+	 * Stats of the last solve, or null before the first one
+	 */
+	public SolveStats getLastStats() {
+		return lastStats;
+	}
+
+	private void startStats() {
+		historySize = 0;
+		assemblyNanos = 0;
+		finalMaxResidual = Double.NaN;
+		allocationStart = SolveStats.threadAllocatedBytes();
+		solveStart = System.nanoTime();
+	}
+
+	private void recordResidual(double residualNorm) {
+		if (historySize == residualHistory.length) {
+			residualHistory = Arrays.copyOf(residualHistory, 2 * historySize);
+		}
+		residualHistory[historySize++] = residualNorm;
+	}
+
+	/**
+	 * Fill in lastStats for the solve started by startStats().
+	 * 
+	 * @param assembled whether the solve assembled the CSR laplacian
+	 * @return iterations
+	 */
+	private int finishStats(String method, int iterations, boolean assembled) {
+		SolveStats stats = new SolveStats();
+		stats.solveNanos = System.nanoTime() - solveStart;
+		long allocationEnd = SolveStats.threadAllocatedBytes();
+		stats.allocatedBytes = allocationStart < 0 ? -1 : allocationEnd - allocationStart;
+		stats.method = method;
+		stats.leafCount = leaves.size();
+		stats.nonZeros = assembled ? laplacian.nonZeros() : 0;
+		stats.assembledRows = assembled ? laplacian.lastAssembledRows : 0;
+		stats.assemblyNanos = assemblyNanos;
+		stats.iterations = iterations;
+		stats.residualHistory = Arrays.copyOf(residualHistory, historySize);
+		stats.finalMaxResidual = finalMaxResidual;
+		lastStats = stats;
+		return iterations;
+	}
+
+	private void ensureCapacity(int n) {
+		if (x.length < n) {
+			int capacity = Math.max(n, 2 * x.length);
+			x = new double[capacity];
+			r = new double[capacity];
+			z = new double[capacity];
+			d = new double[capacity];
+			q = new double[capacity];
+		}
+	}
+
+	/**
+	 * @param preconditioner null for plain conjugate gradient
+	 */
+	public void setPreconditioner(Preconditioner preconditioner) {
+		this.preconditioner = preconditioner;
+	}
+
+	/**
+	 * @param type one of the SimulationConstants.PRECONDITIONER_* constants
+	 */
+	static Preconditioner createPreconditioner(int type) {
+		switch (type) {
+		case SimulationConstants.PRECONDITIONER_NONE:
+			return null;
+		case SimulationConstants.PRECONDITIONER_JACOBI:
+			return new JacobiPreconditioner();
+		case SimulationConstants.PRECONDITIONER_INCOMPLETE_CHOLESKY:
+			return new IncompleteCholeskyPreconditioner();
+		case SimulationConstants.PRECONDITIONER_MULTIGRID:
+			return new QuadtreeMultigrid();
+		default:
+			throw new RuntimeException("Undefined preconditioner constant.");
 		}
 	}
 
 	private void assignIndex() {
 		for (int i = 0; i < leaves.size(); i++) {
-			leaves.get(i).idx = i;
+			leaves.get(i).setIdx(i);
 		}
 	}
 
+	/**
+	 * Fill r with the residual b - Ax of the current potentials.
+	 * 
+	 * @return maximum absolute residual
+	 */
 	private double residual() {
 		double maxRes = 0;
 
-		for (QuadtreeNode node : leaves) {
+		for (int i = 0; i < leaves.size(); i++) {
+			QuadtreeNode node = leaves.get(i);
 			double neighborSum = 0;
 
 			for (int dir = 0; dir < 4; dir++) {
-				neighborSum += node.neighbors.get(2 * dir).potential * node.stencil.get(2 * dir);
-				if (node.neighbors.get(2 * dir + 1) != null) {
-					neighborSum += node.neighbors.get(2 * dir + 1).potential * node.stencil.get(2 * dir + 1);
+				neighborSum += node.getNeighborSlot(2 * dir).getPotential() * node.getStencil(2 * dir);
+				if (node.getNeighborSlot(2 * dir + 1) != null) {
+					neighborSum += node.getNeighborSlot(2 * dir + 1).getPotential() * node.getStencil(2 * dir + 1);
 				}
 			}
-			double residual = node.rhs - (-neighborSum + node.potential * node.stencil.get(8));
-			residuals.add(residual);
-			if (Math.abs(residual) > maxRes) {
-				maxRes = Math.abs(residual);
+			r[i] = node.getRhs() - (-neighborSum + node.getPotential() * node.getStencil(8));
+			if (Math.abs(r[i]) > maxRes) {
+				maxRes = Math.abs(r[i]);
 			}
 		}
-		if (residuals.size() != leaves.size()) {
-			System.err.println("The size of residuals is incorrect.");
-		}
 		return maxRes;
 	}
 }
@@ -0,0 +1,29 @@
+package dbm;
+
+/**
+ * Preconditioner M for the conjugate gradient solve of the quadtree Laplacian.
+ * 
+ * @author rex
+ *
+ */
+interface Preconditioner {
+
+	/**
+	 * Prepare the preconditioner for a newly assembled matrix.
+	 */
+	void setup(SparseLaplacian laplacian);
+
+	/**
+	 * Bring the preconditioner up to date after SparseLaplacian.update()
+	 * rewrote the rows in laplacian.changedRows of the matrix it was set up
+	 * for. By default, set it up again.
+	 */
+	default void update(SparseLaplacian laplacian) {
+		setup(laplacian);
+	}
+
+	/**
+	 * z = inverse(M) * r
+	 */
+	void apply(double[] r, double[] z);
+}
@@ -0,0 +1,72 @@
+package dbm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Nodes bucketed by the position of their centers in square buckets of side
+ * distance, to tell whether any of them lies within distance of a given node
+ * by looking at the few buckets around that node only, instead of at every
+ * node.
+ *
+ * @author rex
+ *
+ */
+class ProximityGrid {
+
+	private final double distance;
+	private final Map<Long, List<QuadtreeNode>> buckets = new HashMap<>();
+
+	/**
+	 * @param distance in the coordinates of the tree, where roots have side 1
+	 */
+	ProximityGrid(List<QuadtreeNode> nodes, double distance) {
+		this.distance = distance;
+		if (distance <= 0) {
+			return;
+		}
+		for (QuadtreeNode node : nodes) {
+			buckets.computeIfAbsent(key(bucket(node.midX()), bucket(node.midY())), k -> new ArrayList<>()).add(node);
+		}
+	}
+
+	/**
+	 * @return true if the center of a node is less than distance away from
+	 *         the square of box along x or y (Chebyshev distance)
+	 */
+	boolean isNear(QuadtreeNode box) {
+		if (buckets.isEmpty()) {
+			return false;
+		}
+		int fromX = bucket(box.leftX() - distance);
+		int toX = bucket(box.rightX() + distance);
+		int fromY = bucket(box.bottomY() - distance);
+		int toY = bucket(box.topY() + distance);
+		for (int x = fromX; x <= toX; x++) {
+			for (int y = fromY; y <= toY; y++) {
+				List<QuadtreeNode> bucket = buckets.get(key(x, y));
+				if (bucket == null) {
+					continue;
+				}
+				for (QuadtreeNode node : bucket) {
+					double dx = Math.max(Math.max(box.leftX() - node.midX(), node.midX() - box.rightX()), 0);
+					double dy = Math.max(Math.max(box.bottomY() - node.midY(), node.midY() - box.topY()), 0);
+					if (Math.max(dx, dy) < distance) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private int bucket(double coordinate) {
+		return (int) Math.floor(coordinate / distance);
+	}
+
+	private static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+}
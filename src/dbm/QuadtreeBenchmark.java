@@ -0,0 +1,378 @@
+package dbm;
+
+import java.awt.geom.Point2D;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Timing harness for the quadtree itself, without solves. Grows a branching
+ * random walk of inserted cells from a start point, as a lightning run does,
+ * once with each storage of BalancedQuadtree, and times the inserts and a
+ * rebuild of the neighbor lists of all leaves.
+ *
+ * Usage: QuadtreeBenchmark [gridSize [inserts]]
+ *
+ *        QuadtreeBenchmark stress [gridSize [inserts]]
+ *
+ * The stress mode does 10^5 sequential inserts by default and reports the
+ * time of each block of STRESS_BLOCK inserts, which stays flat as the tree
+ * grows if the cost of an insert does not depend on the number of leaves.
+ *
+ *        QuadtreeBenchmark memory [gridSize [inserts]]
+ *
+ * The memory mode reports the heap retained per quadtree node after growing
+ * and preparing the tree for a solve (neighbors and stencils).
+ *
+ *        QuadtreeBenchmark offheap [gridSize [inserts]]
+ *
+ * The offheap mode grows the same tree once with each node storage and
+ * solves it a few times, reporting the retained heap, the off-heap bytes and
+ * the garbage collections during the solves.
+ *
+ *        QuadtreeBenchmark finger [inserts]
+ *
+ * The finger mode grows the walk in trees of depth 6 to 14, with and
+ * without finger search, and reports the time per insert and per locate()
+ * of the inserted points in the order of the walk.
+ *
+ *        QuadtreeBenchmark bulk [gridSize [points]]
+ *
+ * The bulk mode inserts uniformly random points, as attractors or noise, one
+ * insert() at a time and with one insertAll().
+ *
+ *        QuadtreeBenchmark recycle [gridSize [inserts]]
+ *
+ * The recycle mode grows the walk and coarsens behind its last cells every
+ * RECYCLE_COARSENING_INTERVAL inserts, as a coarsening run does. It reports
+ * the records of the node slab, the bytes allocated per node created, which
+ * reused records do not need, and the garbage collections.
+ *
+ * @author rex
+ *
+ */
+public class QuadtreeBenchmark {
+
+	private static final int WARMUP_RUNS = 1;
+	private static final int MEASURED_RUNS = 3;
+	private static final int BRANCHES = 8;
+	private static final int STRESS_BLOCK = 10000;
+
+	private static final int[] STORAGES = { SimulationConstants.QUADTREE_POINTER,
+			SimulationConstants.QUADTREE_LINEAR };
+	private static final String[] STORAGE_NAMES = { "pointer", "linear" };
+	private static final int[] NODE_STORAGES = { SimulationConstants.NODE_STORAGE_HEAP,
+			SimulationConstants.NODE_STORAGE_OFF_HEAP };
+	private static final String[] NODE_STORAGE_NAMES = { "heap", "off-heap" };
+	private static final int OFF_HEAP_SOLVES = 5;
+	private static final int RECYCLE_COARSENING_INTERVAL = 1000;
+	/** Inserted cells at the end of the walk kept fine by each coarsening */
+	private static final int RECYCLE_ACTIVE = 64;
+
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("recycle")) {
+			recycle(args.length > 1 ? Integer.parseInt(args[1]) : 4096,
+					args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("finger")) {
+			finger(args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("bulk")) {
+			bulk(args.length > 1 ? Integer.parseInt(args[1]) : 4096,
+					args.length > 2 ? Integer.parseInt(args[2]) : 5000);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("offheap")) {
+			offHeap(args.length > 1 ? Integer.parseInt(args[1]) : 4096,
+					args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("memory")) {
+			memory(args.length > 1 ? Integer.parseInt(args[1]) : 4096,
+					args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("stress")) {
+			stress(args.length > 1 ? Integer.parseInt(args[1]) : 4096,
+					args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+			return;
+		}
+
+		int gridSize = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int inserts = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		System.out.println("grid " + gridSize + "x" + gridSize + "  inserts " + inserts);
+
+		for (int i = 0; i < STORAGES.length; i++) {
+			int storage = STORAGES[i];
+			long insertNanos = 0;
+			long neighborNanos = 0;
+			int leaves = 0;
+			for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+				long start = System.nanoTime();
+				BalancedQuadtree quadtree = grow(gridSize, inserts, storage);
+				long grown = System.nanoTime();
+				List<QuadtreeNode> allLeaves = quadtree.getLeaves();
+				for (QuadtreeNode node : allLeaves) {
+					node.populateNeighbors();
+				}
+				long end = System.nanoTime();
+				if (run >= WARMUP_RUNS) {
+					insertNanos += grown - start;
+					neighborNanos += end - grown;
+				}
+				leaves = allLeaves.size();
+			}
+			System.out.printf("  %-8s leaves %8d  inserts %10.3f ms  neighbors %10.3f ms%n", STORAGE_NAMES[i], leaves,
+					insertNanos / 1e6 / MEASURED_RUNS, neighborNanos / 1e6 / MEASURED_RUNS);
+		}
+	}
+
+	/**
+	 * Insert cells of a branching random walk: each step picks one of the
+	 * last BRANCHES inserted cells and inserts one of its 8 surrounding cells,
+	 * so that the walk spreads out like a bolt.
+	 */
+	static BalancedQuadtree grow(int gridSize, int inserts, int storage) {
+		return grow(gridSize, inserts, storage, SimulationConstants.NODE_STORAGE);
+	}
+
+	static BalancedQuadtree grow(int gridSize, int inserts, int storage, int nodeStorage) {
+		BalancedQuadtree quadtree = new BalancedQuadtree(gridSize, gridSize, storage, nodeStorage);
+		Random random = new Random(gridSize);
+		List<QuadtreeNode> inserted = new ArrayList<>();
+		inserted.add(quadtree.setStart(0.5, 0.5));
+		quadtree.setTermination(0.5, 0.5 / (1 << quadtree.getMaxDepth()));
+		for (int i = 0; i < inserts; i++) {
+			insertStep(quadtree, inserted, random);
+		}
+		return quadtree;
+	}
+
+	private static void insertStep(BalancedQuadtree quadtree, List<QuadtreeNode> inserted, Random random) {
+		double cellSize = 1.0 / (1 << quadtree.getMaxDepth());
+		int branch = random.nextInt(Math.min(BRANCHES, inserted.size()));
+		QuadtreeNode from = inserted.get(inserted.size() - 1 - branch);
+		double x = from.midX() + (random.nextInt(3) - 1) * cellSize;
+		double y = from.midY() + (random.nextInt(3) - 1) * cellSize;
+		if (x > 0 && x < 1 && y > 0 && y < 1) {
+			inserted.add(quadtree.insert(x, y));
+		}
+	}
+
+	private static void memory(int gridSize, int inserts) {
+		System.out.println("grid " + gridSize + "x" + gridSize + "  inserts " + inserts);
+		BalancedQuadtree quadtree = new BalancedQuadtree(gridSize, gridSize);
+		Random random = new Random(gridSize);
+		List<QuadtreeNode> inserted = new ArrayList<>(inserts + 1);
+		long before = usedHeap();
+		inserted.add(quadtree.setStart(0.5, 0.5));
+		for (int i = 0; i < inserts; i++) {
+			insertStep(quadtree, inserted, random);
+		}
+		for (QuadtreeNode node : quadtree.getLeaves()) {
+			node.populateNeighbors();
+		}
+		for (QuadtreeNode node : quadtree.getInteriorLeaves()) {
+			node.computeStencil();
+		}
+		long bytes = usedHeap() - before;
+		int nodes = 0;
+		for (QuadtreeNode root : quadtree.roots) {
+			nodes += countNodes(root);
+		}
+		System.out.printf("  nodes %8d  leaves %8d  %10.1f bytes/node%n", nodes, quadtree.getLeaves().size(),
+				(double) bytes / nodes);
+	}
+
+	private static void recycle(int gridSize, int inserts) {
+		System.out.println("grid " + gridSize + "x" + gridSize + "  inserts " + inserts);
+		BalancedQuadtree quadtree = new BalancedQuadtree(gridSize, gridSize);
+		Random random = new Random(gridSize);
+		List<QuadtreeNode> inserted = new ArrayList<>(inserts + 1);
+		inserted.add(quadtree.setStart(0.5, 0.5));
+
+		long allocated = SolveStats.threadAllocatedBytes();
+		long collections = gcCount();
+		long gcMillis = gcMillis();
+		long start = System.nanoTime();
+		long created = 0;
+		long merged = 0;
+		int nodes = countNodes(quadtree);
+		for (int i = 1; i <= inserts; i++) {
+			insertStep(quadtree, inserted, random);
+			if (i % RECYCLE_COARSENING_INTERVAL == 0) {
+				int merges = quadtree.coarsen(
+						inserted.subList(Math.max(0, inserted.size() - RECYCLE_ACTIVE), inserted.size()));
+				int after = countNodes(quadtree);
+				created += after - nodes + 4 * merges;
+				merged += 4 * merges;
+				nodes = after;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated = SolveStats.threadAllocatedBytes() - allocated;
+		collections = gcCount() - collections;
+		gcMillis = gcMillis() - gcMillis;
+		NodeSlab slab = quadtree.getSlab();
+		System.out.printf("  created %8d  merged %8d  records %8d  free %8d  %8.1f bytes allocated/node created  "
+				+ "gc %4d / %6d ms  %10.3f ms%n", created, merged, slab.capacity(), slab.capacity() - slab.size(),
+				(double) allocated / created, collections, gcMillis, elapsed / 1e6);
+	}
+
+	private static int countNodes(BalancedQuadtree quadtree) {
+		int nodes = 0;
+		for (QuadtreeNode root : quadtree.roots) {
+			nodes += countNodes(root);
+		}
+		return nodes;
+	}
+
+	private static void offHeap(int gridSize, int inserts) {
+		System.out.println("grid " + gridSize + "x" + gridSize + "  inserts " + inserts);
+		for (int i = 0; i < NODE_STORAGES.length; i++) {
+			long before = usedHeap();
+			BalancedQuadtree quadtree = grow(gridSize, inserts, SimulationConstants.QUADTREE_STORAGE, NODE_STORAGES[i]);
+			quadtree.solve();
+			long heap = usedHeap() - before;
+
+			long collections = gcCount();
+			long gcMillis = gcMillis();
+			long start = System.nanoTime();
+			for (int solve = 0; solve < OFF_HEAP_SOLVES; solve++) {
+				quadtree.solve();
+			}
+			long elapsed = System.nanoTime() - start;
+			collections = gcCount() - collections;
+			gcMillis = gcMillis() - gcMillis;
+
+			double checksum = 0;
+			for (QuadtreeNode node : quadtree.getLeaves()) {
+				checksum += node.getPotential();
+			}
+			OffHeapNodeStore store = quadtree.getSlab().store;
+			System.out.printf("  %-8s leaves %8d  heap %8.1f MB  off-heap %8.1f MB  solve %10.3f ms  "
+					+ "gc %4d / %6d ms  potential sum %.6f%n", NODE_STORAGE_NAMES[i], quadtree.getLeaves().size(),
+					heap / 1e6, store == null ? 0 : store.bytes() / 1e6, elapsed / 1e6 / OFF_HEAP_SOLVES, collections,
+					gcMillis, checksum);
+		}
+	}
+
+	private static void finger(int inserts) {
+		System.out.println("inserts " + inserts);
+		for (int depth = 6; depth <= 14; depth += 2) {
+			int gridSize = 1 << depth;
+			for (int search = 1; search >= 0; search--) {
+				long insertNanos = 0;
+				long locateNanos = 0;
+				for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+					BalancedQuadtree quadtree = new BalancedQuadtree(gridSize, gridSize);
+					quadtree.setFingerSearch(search == 1);
+					Random random = new Random(gridSize);
+					List<QuadtreeNode> inserted = new ArrayList<>(inserts + 1);
+					inserted.add(quadtree.setStart(0.5, 0.5));
+					long start = System.nanoTime();
+					for (int i = 0; i < inserts; i++) {
+						insertStep(quadtree, inserted, random);
+					}
+					long grown = System.nanoTime();
+					for (QuadtreeNode node : inserted) {
+						quadtree.locate(node.midX(), node.midY());
+					}
+					long end = System.nanoTime();
+					if (run >= WARMUP_RUNS) {
+						insertNanos += grown - start;
+						locateNanos += (end - grown) * inserts / inserted.size();
+					}
+				}
+				System.out.printf("  depth %2d  %-6s  insert %8.3f us  locate %8.3f us%n", depth,
+						search == 1 ? "finger" : "root", insertNanos / 1e3 / inserts / MEASURED_RUNS,
+						locateNanos / 1e3 / inserts / MEASURED_RUNS);
+			}
+		}
+	}
+
+	private static void bulk(int gridSize, int count) {
+		System.out.println("grid " + gridSize + "x" + gridSize + "  points " + count);
+		Random random = new Random(gridSize);
+		List<Point2D> points = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			points.add(new Point2D.Double(random.nextDouble(), random.nextDouble()));
+		}
+		for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+			BalancedQuadtree single = new BalancedQuadtree(gridSize, gridSize);
+			long start = System.nanoTime();
+			for (Point2D point : points) {
+				single.insert(point.getX(), point.getY());
+			}
+			long singleNanos = System.nanoTime() - start;
+
+			BalancedQuadtree bulk = new BalancedQuadtree(gridSize, gridSize);
+			start = System.nanoTime();
+			bulk.insertAll(points);
+			long bulkNanos = System.nanoTime() - start;
+
+			if (run >= WARMUP_RUNS) {
+				System.out.printf("  leaves %8d / %8d  insert %10.3f ms  insertAll %10.3f ms%n",
+						single.getLeaves().size(), bulk.getLeaves().size(), singleNanos / 1e6, bulkNanos / 1e6);
+			}
+		}
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static int countNodes(QuadtreeNode node) {
+		int count = 1;
+		for (int i = 0; node.hasChildren() && i < 4; i++) {
+			count += countNodes(node.getChild(i));
+		}
+		return count;
+	}
+
+	private static void stress(int gridSize, int inserts) {
+		System.out.println("grid " + gridSize + "x" + gridSize + "  inserts " + inserts);
+		BalancedQuadtree quadtree = new BalancedQuadtree(gridSize, gridSize);
+		Random random = new Random(gridSize);
+		List<QuadtreeNode> inserted = new ArrayList<>();
+		inserted.add(quadtree.setStart(0.5, 0.5));
+
+		long total = 0;
+		for (int done = 0; done < inserts; done += STRESS_BLOCK) {
+			int block = Math.min(STRESS_BLOCK, inserts - done);
+			long start = System.nanoTime();
+			for (int i = 0; i < block; i++) {
+				insertStep(quadtree, inserted, random);
+			}
+			long elapsed = System.nanoTime() - start;
+			total += elapsed;
+			System.out.printf("  inserts %8d  leaves %8d  %10.3f ms  %8.3f us/insert%n", done + block,
+					quadtree.getLeaves().size(), elapsed / 1e6, elapsed / 1e3 / block);
+		}
+		System.out.printf("  total %10.3f ms%n", total / 1e6);
+	}
+}
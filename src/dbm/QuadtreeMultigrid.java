@@ -0,0 +1,321 @@
+package dbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Multigrid V-cycle over the hierarchy of the balanced quadtree.
+ *
+ * Each coarser level merges the cells of the level below into their parent,
+ * so the number of unknowns shrinks geometrically and a cycle costs time
+ * linear in the number of leaves. Once every cell is a root, blocks of 2x2
+ * roots are merged in the same way, so the coarsest level stays small however
+ * many roots the tree has. Restriction sums the residual over the merged
+ * cells, prolongation copies the parent correction back to them, and the
+ * coarse operator is the Galerkin product transpose(P) * A * P. Smoothing is
+ * Gauss-Seidel, forward before and backward after the coarse correction, so
+ * the cycle is symmetric and can also precondition conjugate gradient. The
+ * coarsest level is solved exactly.
+ *
+ * The cells of each level are kept by the hierarchy as locational codes (see
+ * LinearQuadtreeIndex), so the nodes of the tree are only read.
+ *
+ * @author rex
+ *
+ */
+class QuadtreeMultigrid implements Preconditioner {
+
+	/** Levels are added until the number of unknowns is at most this */
+	private static final int COARSEST_SIZE = 64;
+	/** depth bits of a locational code */
+	private static final int DEPTH_SHIFT = 58;
+	private static final long MORTON_MASK = (1L << DEPTH_SHIFT) - 1;
+	/** code of the cell of the identity rows, which have no cell */
+	private static final long NO_CELL = 0;
+	private static final int SMOOTHING_STEPS = 1;
+
+	/** operator of each level; level 0 is the fine Laplacian */
+	private List<SparseLaplacian> levels = new ArrayList<>();
+	/** coarse row of each row of the level above, per level transition */
+	private List<int[]> aggregates = new ArrayList<>();
+	/** right-hand side, solution and residual per level */
+	private List<double[]> rhs = new ArrayList<>();
+	private List<double[]> solution = new ArrayList<>();
+	private List<double[]> residual = new ArrayList<>();
+
+	/** Cholesky factor of the coarsest operator, dense, row major */
+	private double[] coarsestFactor;
+
+	/** coarse row of each coarse cell code, by open addressing */
+	private long[] tableKeys = new long[0];
+	private int[] tableRows = new int[0];
+
+	@Override
+	public void setup(SparseLaplacian laplacian) {
+		levels.clear();
+		aggregates.clear();
+		rhs.clear();
+		solution.clear();
+		residual.clear();
+
+		levels.add(laplacian);
+		long[] cells = new long[laplacian.size];
+		for (int i = 0; i < laplacian.size; i++) {
+			QuadtreeNode node = laplacian.nodeAt(i);
+			cells[i] = node == null ? NO_CELL
+					: LinearQuadtreeIndex.locationalCode(node.getDepth(), node.getCellX(), node.getCellY());
+		}
+
+		while (levels.get(levels.size() - 1).size > COARSEST_SIZE) {
+			SparseLaplacian fine = levels.get(levels.size() - 1);
+
+			// merge every cell into its parent, or once all cells are roots,
+			// every root into its block of 2x2 roots; identity rows are
+			// aggregated together
+			boolean rootsOnly = true;
+			for (long cell : cells) {
+				if (cell != NO_CELL && depth(cell) > 0) {
+					rootsOnly = false;
+					break;
+				}
+			}
+			clearTable(fine.size);
+			long[] coarseCells = new long[fine.size];
+			int coarseSize = 0;
+			int[] aggregate = new int[fine.size];
+			for (int i = 0; i < fine.size; i++) {
+				long coarseCell = cells[i] == NO_CELL ? NO_CELL : coarseCell(cells[i], rootsOnly);
+				int row = findRow(coarseCell, coarseSize);
+				if (row == coarseSize) {
+					coarseCells[coarseSize++] = coarseCell;
+				}
+				aggregate[i] = row;
+			}
+
+			if (coarseSize == fine.size) {
+				break;
+			}
+
+			levels.add(galerkin(fine, aggregate, coarseSize));
+			aggregates.add(aggregate);
+			cells = Arrays.copyOf(coarseCells, coarseSize);
+		}
+
+		for (SparseLaplacian level : levels) {
+			rhs.add(new double[level.size]);
+			solution.add(new double[level.size]);
+			residual.add(new double[level.size]);
+		}
+		factorCoarsest(levels.get(levels.size() - 1));
+	}
+
+	private static int depth(long cell) {
+		return (int) (cell >>> DEPTH_SHIFT) - 1;
+	}
+
+	/**
+	 * The parent of a cell, a root itself unless rootsOnly, in which case the
+	 * block of 2x2 roots of a root. Dropping the last two bits of the Morton
+	 * code halves both cell coordinates.
+	 */
+	private static long coarseCell(long cell, boolean rootsOnly) {
+		int depth = depth(cell);
+		if (depth == 0 && !rootsOnly) {
+			return cell;
+		}
+		int coarseDepth = Math.max(depth - 1, 0);
+		return ((long) (coarseDepth + 1) << DEPTH_SHIFT) | ((cell & MORTON_MASK) >>> 2);
+	}
+
+	private void clearTable(int cells) {
+		int capacity = Integer.highestOneBit(Math.max(2 * cells - 1, 1)) << 1;
+		if (tableKeys.length < capacity) {
+			tableKeys = new long[capacity];
+			tableRows = new int[capacity];
+		}
+		Arrays.fill(tableRows, -1);
+	}
+
+	/**
+	 * @return the coarse row of the cell, or newRow, under which the cell is
+	 *         then entered
+	 */
+	private int findRow(long cell, int newRow) {
+		int mask = tableKeys.length - 1;
+		int slot = (int) ((cell * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while (tableRows[slot] >= 0) {
+			if (tableKeys[slot] == cell) {
+				return tableRows[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		tableKeys[slot] = cell;
+		tableRows[slot] = newRow;
+		return newRow;
+	}
+
+	/**
+	 * transpose(P) * A * P where P maps each fine row to its aggregate
+	 */
+	private static SparseLaplacian galerkin(SparseLaplacian fine, int[] aggregate, int coarseSize) {
+
+		// fine rows of each aggregate
+		int[] aggregateStart = new int[coarseSize + 1];
+		for (int i = 0; i < fine.size; i++) {
+			aggregateStart[aggregate[i] + 1]++;
+		}
+		for (int c = 0; c < coarseSize; c++) {
+			aggregateStart[c + 1] += aggregateStart[c];
+		}
+		int[] aggregateRows = new int[fine.size];
+		int[] fill = aggregateStart.clone();
+		for (int i = 0; i < fine.size; i++) {
+			aggregateRows[fill[aggregate[i]]++] = i;
+		}
+
+		SparseLaplacian coarse = new SparseLaplacian();
+		coarse.size = coarseSize;
+		coarse.ensureCapacity(coarseSize);
+
+		// position of each coarse column in the row being built, -1 if absent
+		int[] marker = new int[coarseSize];
+		Arrays.fill(marker, -1);
+		int[] rowCols = new int[4 * SparseLaplacian.MAX_ROW_ENTRIES];
+		double[] rowValues = new double[rowCols.length];
+
+		int nnz = 0;
+		for (int c = 0; c < coarseSize; c++) {
+			int rowSize = 0;
+			for (int a = aggregateStart[c]; a < aggregateStart[c + 1]; a++) {
+				int i = aggregateRows[a];
+				for (int k = fine.rowPtr[i]; k < fine.rowEnd[i]; k++) {
+					int col = aggregate[fine.colIdx[k]];
+					if (marker[col] < 0) {
+						marker[col] = rowSize;
+						rowCols[rowSize] = col;
+						rowValues[rowSize] = 0;
+						rowSize++;
+					}
+					rowValues[marker[col]] += fine.values[k];
+				}
+			}
+			coarse.rowPtr[c] = nnz;
+			nnz = coarse.appendRow(c, nnz, rowCols, rowValues, rowSize);
+			for (int k = 0; k < rowSize; k++) {
+				marker[rowCols[k]] = -1;
+			}
+		}
+		coarse.rowPtr[coarseSize] = nnz;
+		return coarse;
+	}
+
+	private void factorCoarsest(SparseLaplacian coarsest) {
+		int n = coarsest.size;
+		coarsestFactor = new double[n * n];
+		for (int i = 0; i < n; i++) {
+			for (int k = coarsest.rowPtr[i]; k < coarsest.rowEnd[i]; k++) {
+				coarsestFactor[i * n + coarsest.colIdx[k]] = coarsest.values[k];
+			}
+		}
+		for (int j = 0; j < n; j++) {
+			double pivot = coarsestFactor[j * n + j];
+			for (int k = 0; k < j; k++) {
+				pivot -= coarsestFactor[j * n + k] * coarsestFactor[j * n + k];
+			}
+			pivot = Math.sqrt(pivot);
+			coarsestFactor[j * n + j] = pivot;
+			for (int i = j + 1; i < n; i++) {
+				double sum = coarsestFactor[i * n + j];
+				for (int k = 0; k < j; k++) {
+					sum -= coarsestFactor[i * n + k] * coarsestFactor[j * n + k];
+				}
+				coarsestFactor[i * n + j] = sum / pivot;
+			}
+		}
+	}
+
+	/**
+	 * z = one V-cycle applied to r, starting from a zero guess
+	 */
+	@Override
+	public void apply(double[] r, double[] z) {
+		int n = levels.get(0).size;
+		double[] b = rhs.get(0);
+		System.arraycopy(r, 0, b, 0, n);
+		vCycle(0);
+		System.arraycopy(solution.get(0), 0, z, 0, n);
+	}
+
+	private void vCycle(int level) {
+		SparseLaplacian a = levels.get(level);
+		double[] b = rhs.get(level);
+		double[] x = solution.get(level);
+
+		if (level == levels.size() - 1) {
+			solveCoarsest(a.size, b, x);
+			return;
+		}
+		Arrays.fill(x, 0, a.size, 0);
+
+		for (int s = 0; s < SMOOTHING_STEPS; s++) {
+			gaussSeidel(a, b, x, true);
+		}
+
+		// restrict the residual: sum over the cells merged into each parent
+		double[] res = residual.get(level);
+		a.multiply(x, res);
+		int[] aggregate = aggregates.get(level);
+		double[] coarseRhs = rhs.get(level + 1);
+		Arrays.fill(coarseRhs, 0, levels.get(level + 1).size, 0);
+		for (int i = 0; i < a.size; i++) {
+			coarseRhs[aggregate[i]] += b[i] - res[i];
+		}
+
+		vCycle(level + 1);
+
+		// prolongate: every merged cell takes the correction of its parent
+		double[] coarseX = solution.get(level + 1);
+		for (int i = 0; i < a.size; i++) {
+			x[i] += coarseX[aggregate[i]];
+		}
+
+		for (int s = 0; s < SMOOTHING_STEPS; s++) {
+			gaussSeidel(a, b, x, false);
+		}
+	}
+
+	private static void gaussSeidel(SparseLaplacian a, double[] b, double[] x, boolean forward) {
+		for (int step = 0; step < a.size; step++) {
+			int i = forward ? step : a.size - 1 - step;
+			double sum = b[i];
+			for (int k = a.rowPtr[i]; k < a.rowEnd[i]; k++) {
+				if (k != a.diagPtr[i]) {
+					sum -= a.values[k] * x[a.colIdx[k]];
+				}
+			}
+			x[i] = sum / a.values[a.diagPtr[i]];
+		}
+	}
+
+	private void solveCoarsest(int n, double[] b, double[] x) {
+		for (int i = 0; i < n; i++) {
+			double sum = b[i];
+			for (int k = 0; k < i; k++) {
+				sum -= coarsestFactor[i * n + k] * x[k];
+			}
+			x[i] = sum / coarsestFactor[i * n + i];
+		}
+		for (int i = n - 1; i >= 0; i--) {
+			double sum = x[i];
+			for (int k = i + 1; k < n; k++) {
+				sum -= coarsestFactor[k * n + i] * x[k];
+			}
+			x[i] = sum / coarsestFactor[i * n + i];
+		}
+	}
+
+	int numLevels() {
+		return levels.size();
+	}
+}
@@ -20,184 +20,502 @@ class QuadtreeNode {
 	private static final int RIGHT_NEIGHBOR = 3;
 
 	static final int[] NEIGHBOR_DIRS = { TOP_NEIGHBOR, BOTTOM_NEIGHBOR, LEFT_NEIGHBOR, RIGHT_NEIGHBOR };
+	/** The two children along the side of a neighbor in direction dir that faces this node */
+	private static final int[][] FACING_CHILDREN = { { 3, 2 }, { 0, 1 }, { 1, 2 }, { 0, 3 } };
 
-	QuadtreeNode parent;
 	/**
-	 * Either empty or a list of 4 children: top left, top right, bottom right,
-	 * bottom left.
+	 * Border sentinels, one per depth, standing in for the missing neighbors
+	 * of the nodes along the border of the domain. They hold no state besides
+	 * their depth, so all trees share them, in a slab of their own.
 	 */
-	List<QuadtreeNode> children;
+	private static final QuadtreeNode[] BORDER = new QuadtreeNode[32];
 
-	boolean isLeaf;
+	static {
+		NodeSlab borderSlab = new NodeSlab(null, null, false);
+		for (int depth = 0; depth < BORDER.length; depth++) {
+			BORDER[depth] = borderSlab.node(borderSlab.allocate());
+			borderSlab.setInt(BORDER[depth].handle, NodeSlab.INFO, depth | NodeSlab.LEAF | NodeSlab.BOUNDARY);
+		}
+	}
+
+	/** The slab of the tree, which holds the state of this node */
+	final NodeSlab slab;
+	/** record of this node in slab */
+	final int handle;
 
 	/**
-	 * The top left coordinate of this node in the grid. The bottom left is (0,
-	 * 0).
+	 * The node of a record of slab, see NodeSlab.node()
 	 */
-	double leftX;
-	double rightX;
-	double topY;
-	double bottomY;
-	double midX;
-	double midY;
+	QuadtreeNode(NodeSlab slab, int handle) {
+		this.slab = slab;
+		this.handle = handle;
+	}
 
 	/**
-	 * A list of (potential) 8 neighbors: 2 above; 2 on right; 2 below; 2 on
-	 * left.
+	 * Make this a new leaf covering cell (cellX, cellY) of depth depth, under
+	 * the node of handle parent, or a root for NodeSlab.NONE. The record was
+	 * cleared by the slab, neighbor slots included.
 	 */
-	List<QuadtreeNode> neighbors;
+	void init(int parent, int depth, int cellX, int cellY, double potential) {
+		slab.setInt(handle, NodeSlab.PARENT, parent);
+		slab.setInt(handle, NodeSlab.CELL_X, cellX);
+		slab.setInt(handle, NodeSlab.CELL_Y, cellY);
+		slab.setInt(handle, NodeSlab.INFO,
+				depth | NodeSlab.LEAF | NodeSlab.NEIGHBORS_DIRTY | NodeSlab.STENCIL_DIRTY | NodeSlab.ROW_DIRTY);
+		setPotential(potential);
+	}
+
 	/**
-	 * A list of (potential) 9-node stencil including neighboring nodes and
-	 * itself.
+	 * True for the border sentinels
 	 */
-	List<Double> stencil;
+	boolean isBorder() {
+		return this == BORDER[getDepth()];
+	}
+
+	QuadtreeNode getParent() {
+		int parent = slab.getInt(handle, NodeSlab.PARENT);
+		return parent == NodeSlab.NONE ? null : slab.node(parent);
+	}
+
+	boolean hasChildren() {
+		return slab.getInt(handle, NodeSlab.FIRST_CHILD) != NodeSlab.NONE;
+	}
+
+	/**
+	 * Child i: 0 top left, 1 top right, 2 bottom right, 3 bottom left. The
+	 * node must have children.
+	 */
+	QuadtreeNode getChild(int i) {
+		return slab.node(slab.getInt(handle, NodeSlab.FIRST_CHILD) + i);
+	}
+
+	/**
+	 * The tree this node belongs to, told about new nodes and invalidated
+	 * neighbor lists. Null for border sentinels.
+	 */
+	BalancedQuadtree getTree() {
+		return slab.tree;
+	}
 
 	/** depth of current node in the quadtree. */
-	int depth;
+	int getDepth() {
+		return slab.getInt(handle, NodeSlab.INFO) & NodeSlab.DEPTH_MASK;
+	}
+
+	/**
+	 * Cell coordinates among the cells of this depth, x to the right and y
+	 * up. The roots of the tree are the cells of depth 0.
+	 */
+	int getCellX() {
+		return slab.getInt(handle, NodeSlab.CELL_X);
+	}
+
+	int getCellY() {
+		return slab.getInt(handle, NodeSlab.CELL_Y);
+	}
+
+	int getType() {
+		return (slab.getInt(handle, NodeSlab.INFO) & NodeSlab.TYPE_MASK) >> NodeSlab.TYPE_SHIFT;
+	}
+
+	void setType(int type) {
+		int info = slab.getInt(handle, NodeSlab.INFO);
+		slab.setInt(handle, NodeSlab.INFO, (info & ~NodeSlab.TYPE_MASK) | (type << NodeSlab.TYPE_SHIFT));
+	}
+
+	boolean isLeaf() {
+		return slab.getFlag(handle, NodeSlab.LEAF);
+	}
+
+	boolean isBoundary() {
+		return slab.getFlag(handle, NodeSlab.BOUNDARY);
+	}
+
+	boolean isAttractor() {
+		return slab.getFlag(handle, NodeSlab.ATTRACTOR);
+	}
+
+	void setAttractor(boolean isAttractor) {
+		slab.setFlag(handle, NodeSlab.ATTRACTOR, isAttractor);
+	}
+
 	/**
 	 * a linear ordering of nodes in the quadtree for solving matrix system.
 	 */
-	int idx;
-
-	boolean isBoundary;
-	boolean isAttractor = false;
-	/** To be considered for growth site */
-	boolean isCandidate = false;
-
-	double potential = 0;
-	/**  right-hand side of linear system */
-	double rhs = 0;
-
-	int type = 0;
-
-	QuadtreeNode(QuadtreeNode parent, double leftX, double rightX, double topY, double bottomY, int depth,
-			double potential) {
-		this.parent = parent;
-		this.depth = depth;
-		this.leftX = leftX;
-		this.rightX = rightX;
-		this.midX = (leftX + rightX) / 2;
-		this.topY = topY;
-		this.bottomY = bottomY;
-		this.midY = (topY + bottomY) / 2;
-		this.potential = potential;
-		this.isLeaf = true;
-		this.isBoundary = false;
-		initLists();
-	}
-
-	QuadtreeNode(int depth) {
-		this.parent = null;
-		this.depth = depth;
-		this.isBoundary = true;
-		this.isLeaf = true;
-		initLists();
+	int getIdx() {
+		return slab.getInt(handle, NodeSlab.IDX);
 	}
-	
-	private void initLists() {
-		stencil = new ArrayList<>();
-		for (int i = 0; i < 9; i++) {
-			stencil.add(0.0);
+
+	void setIdx(int idx) {
+		slab.setInt(handle, NodeSlab.IDX, idx);
+	}
+
+	/** Positions in the leaf lists of the tree, -1 if not in them */
+	int getLeafPosition() {
+		return slab.getInt(handle, NodeSlab.LEAF_POSITION);
+	}
+
+	void setLeafPosition(int position) {
+		slab.setInt(handle, NodeSlab.LEAF_POSITION, position);
+	}
+
+	int getInteriorPosition() {
+		return slab.getInt(handle, NodeSlab.INTERIOR_POSITION);
+	}
+
+	void setInteriorPosition(int position) {
+		slab.setInt(handle, NodeSlab.INTERIOR_POSITION, position);
+	}
+
+	int getFinestPosition() {
+		return slab.getInt(handle, NodeSlab.FINEST_POSITION);
+	}
+
+	void setFinestPosition(int position) {
+		slab.setInt(handle, NodeSlab.FINEST_POSITION, position);
+	}
+
+	/** Position in the growth frontier of the tree, -1 if not a growth site */
+	int getFrontierPosition() {
+		return slab.getInt(handle, NodeSlab.FRONTIER_POSITION);
+	}
+
+	void setFrontierPosition(int position) {
+		slab.setInt(handle, NodeSlab.FRONTIER_POSITION, position);
+	}
+
+	/**
+	 * True if the stencil and rhs need recomputing because the neighbors, or
+	 * the boundary status of a neighbor, changed since the last solve.
+	 */
+	boolean isStencilDirty() {
+		return slab.getFlag(handle, NodeSlab.STENCIL_DIRTY);
+	}
+
+	/**
+	 * True if the stencil was recomputed since the row of this leaf was last
+	 * written to the solver's SparseLaplacian
+	 */
+	boolean isRowDirty() {
+		return slab.getFlag(handle, NodeSlab.ROW_DIRTY);
+	}
+
+	void setRowDirty(boolean rowDirty) {
+		slab.setFlag(handle, NodeSlab.ROW_DIRTY, rowDirty);
+	}
+
+	void clearWeightDirty() {
+		slab.setFlag(handle, NodeSlab.WEIGHT_DIRTY, false);
+	}
+
+	/**
+	 * True if the neighbor list must be recomputed, because the node is new or
+	 * an adjacent node was subdivided.
+	 */
+	private boolean isNeighborsDirty() {
+		return slab.getFlag(handle, NodeSlab.NEIGHBORS_DIRTY);
+	}
+
+	/**
+	 * Neighbor slot i of the list of (potential) 8 neighbors: 2 above; 2 on
+	 * right; 2 below; 2 on left, null for an empty slot. Filled by
+	 * populateNeighbors(), which must have been called.
+	 */
+	QuadtreeNode getNeighborSlot(int i) {
+		int neighbor = slab.getInt(handle, NodeSlab.NEIGHBORS + i);
+		if (neighbor == NodeSlab.NONE) {
+			return null;
+		}
+		return neighbor == NodeSlab.BORDER ? BORDER[getDepth()] : slab.node(neighbor);
+	}
+
+	/**
+	 * True once populateNeighbors() filled the neighbor slots, until the node
+	 * is subdivided
+	 */
+	boolean hasNeighborSlots() {
+		return slab.getFlag(handle, NodeSlab.HAS_NEIGHBORS);
+	}
+
+	double getPotential() {
+		return slab.getDouble(handle, NodeSlab.POTENTIAL);
+	}
+
+	/**
+	 * A growth site whose potential changes is reported to the frontier,
+	 * which recomputes its weight in refreshWeights()
+	 */
+	void setPotential(double potential) {
+		if (slab.getInt(handle, NodeSlab.FRONTIER_POSITION) >= 0 && !slab.getFlag(handle, NodeSlab.WEIGHT_DIRTY)
+				&& potential != getPotential()) {
+			slab.setFlag(handle, NodeSlab.WEIGHT_DIRTY, true);
+			slab.tree.getFrontier().potentialChanged(this);
+		}
+		slab.setDouble(handle, NodeSlab.POTENTIAL, potential);
+	}
+
+	/**  right-hand side of linear system, contributed by boundary neighbors */
+	double getRhs() {
+		return slab.getDouble(handle, NodeSlab.RHS);
+	}
+
+	void setRhs(double rhs) {
+		slab.setDouble(handle, NodeSlab.RHS, rhs);
+	}
+
+	/**
+	 * Entry i of the 9-node stencil: 0 to 7 for the neighbors, 8 for the node
+	 * itself. The entries follow from the depths of the node and its
+	 * neighbors, so they are computed here rather than stored. Valid while
+	 * the stencil is not dirty.
+	 */
+	double getStencil(int i) {
+		int scale = 1 << getDepth();
+		if (i == 8) {
+			double deltaSum = 0;
+			for (int side = 0; side < 4; side++) {
+				deltaSum += sideWeight(side, scale);
+			}
+			return deltaSum;
 		}
-		children = new ArrayList<>();
-		neighbors = new ArrayList<>();
+		QuadtreeNode neighbor = getNeighborSlot(i);
+		if (neighbor == null || neighbor.isBoundary()) {
+			return 0.0;
+		}
+		if (getNeighborSlot(i | 1) == null && neighbor.getDepth() != getDepth()) {
+			// neighbor is larger (side length differs by a factor of 2 by properties of balanced quadtree)
+			return 0.5 * (double) scale;
+		}
+		return (double) scale;
+	}
+
+	/**
+	 * Sum of the stencil weights of the neighbors on one side, boundary or
+	 * not
+	 */
+	private double sideWeight(int side, int scale) {
+		if (getNeighborSlot(2 * side + 1) != null) {
+			// neighbor side length is smaller by a factor of 2
+			return 2 * scale;
+		}
+		return getNeighborSlot(2 * side).getDepth() == getDepth() ? scale : 0.5 * scale;
+	}
+
+	/**
+	 * Side length; roots have side 1
+	 */
+	double size() {
+		return 1.0 / (1 << getDepth());
+	}
+
+	/**
+	 * Geometry, computed from the cell coordinates. The bottom left of the
+	 * domain is (0, 0), see BalancedQuadtree.getDomainWidth().
+	 */
+	double leftX() {
+		return getCellX() * size();
+	}
+
+	double rightX() {
+		return (getCellX() + 1) * size();
+	}
+
+	double bottomY() {
+		return getCellY() * size();
+	}
+
+	double topY() {
+		return (getCellY() + 1) * size();
+	}
+
+	double midX() {
+		return (getCellX() + 0.5) * size();
+	}
+
+	double midY() {
+		return (getCellY() + 0.5) * size();
 	}
 
 	void subdivide() {
-		if (!children.isEmpty()) {
+		if (hasChildren()) {
 			System.err.println("Attempt to subdivide a node that already has children.");
 			return;
 		}
 
-		children.add(new QuadtreeNode(this, leftX, midX, topY, midY, depth + 1, potential));
-		children.add(new QuadtreeNode(this, midX, rightX, topY, midY, depth + 1, potential));
-		children.add(new QuadtreeNode(this, midX, rightX, midY, bottomY, depth + 1, potential));
-		children.add(new QuadtreeNode(this, leftX, midX, midY, bottomY, depth + 1, potential));
-		isLeaf = false;
+		double potential = getPotential();
+		int depth = getDepth();
+		int cellX = getCellX();
+		int cellY = getCellY();
+		int first = slab.allocateChildren();
+		slab.node(first).init(handle, depth + 1, 2 * cellX, 2 * cellY + 1, potential);
+		slab.node(first + 1).init(handle, depth + 1, 2 * cellX + 1, 2 * cellY + 1, potential);
+		slab.node(first + 2).init(handle, depth + 1, 2 * cellX + 1, 2 * cellY, potential);
+		slab.node(first + 3).init(handle, depth + 1, 2 * cellX, 2 * cellY, potential);
+		slab.setInt(handle, NodeSlab.FIRST_CHILD, first);
+		slab.setFlag(handle, NodeSlab.LEAF, false);
+		// only leaves use neighbors
+		clearNeighborSlots();
+
+		BalancedQuadtree tree = getTree();
+		for (int i = 0; i < 4; i++) {
+			QuadtreeNode child = getChild(i);
+			if (slab.index != null) {
+				slab.index.add(child);
+			}
+			if (tree != null) {
+				tree.nodeCreated(child);
+			}
+		}
+		if (tree != null) {
+			tree.nodeSubdivided(this);
+		}
+		invalidateAdjacentNeighborLists();
+	}
+
+	/**
+	 * Replace the four children, which must be leaves, by this node again:
+	 * the inverse of subdivide(). The potential of this node becomes the mean
+	 * of theirs. The records of the children go back to the slab, for the
+	 * next subdivide() to reuse with their node objects.
+	 */
+	void merge() {
+		if (!hasChildren()) {
+			System.err.println("Attempt to merge a node that has no children.");
+			return;
+		}
+
+		BalancedQuadtree tree = getTree();
+		double potential = 0;
+		for (int i = 0; i < 4; i++) {
+			QuadtreeNode child = getChild(i);
+			potential += child.getPotential();
+			if (slab.index != null) {
+				slab.index.remove(child);
+			}
+			if (tree != null) {
+				tree.nodeRemoved(child);
+			}
+			child.slab.setFlag(child.handle, NodeSlab.LEAF, false);
+		}
+		slab.freeChildren(slab.getInt(handle, NodeSlab.FIRST_CHILD));
+		slab.setInt(handle, NodeSlab.FIRST_CHILD, NodeSlab.NONE);
+		slab.setFlag(handle, NodeSlab.LEAF, true);
+		setPotential(potential / 4);
+		slab.setFlag(handle, NodeSlab.NEIGHBORS_DIRTY, true);
+		slab.setFlag(handle, NodeSlab.STENCIL_DIRTY, true);
+		if (tree != null) {
+			tree.nodeMerged(this);
+		}
+		invalidateAdjacentNeighborLists();
+	}
+
+	/**
+	 * Set the boundary flag, keeping the interior leaf list of the tree up to
+	 * date.
+	 */
+	void setBoundary(boolean isBoundary) {
+		if (isBoundary() != isBoundary) {
+			slab.setFlag(handle, NodeSlab.BOUNDARY, isBoundary);
+			if (getTree() != null) {
+				getTree().boundaryChanged(this);
+			}
+		}
 	}
 
 	QuadtreeNode getNeighborAbove() {
+		if (slab.index != null)
+			return slab.index.neighbor(this, 0, 1);
+		QuadtreeNode parent = getParent();
 		if (parent == null)
-			return null;
+			return getTree() == null ? null : getTree().rootAt(getCellX(), getCellY() + 1);
 
 		// if it is the southern child of the parent
-		if (parent.children.get(3) == this)
-			return parent.children.get(0);
-		if (parent.children.get(2) == this)
-			return parent.children.get(1);
+		if (parent.getChild(3) == this)
+			return parent.getChild(0);
+		if (parent.getChild(2) == this)
+			return parent.getChild(1);
 
 		// else look up higher
 		QuadtreeNode pneighbor = parent.getNeighborAbove();
 
-		if (pneighbor == null || pneighbor.children.isEmpty()) {
+		if (pneighbor == null || !pneighbor.hasChildren()) {
 			return pneighbor;
-		} else if (parent.children.get(0) == this) {
+		} else if (parent.getChild(0) == this) {
 			// if it is the upper left child of the parent, the neighbor above
 			// should be the bottom left child of pneighbor
-			return pneighbor.children.get(3);
+			return pneighbor.getChild(3);
 		} else {
 			// if it is the NE child of the parent
-			return pneighbor.children.get(2);
+			return pneighbor.getChild(2);
 		}
 	}
 
 	QuadtreeNode getNeighborBelow() {
+		if (slab.index != null)
+			return slab.index.neighbor(this, 0, -1);
+		QuadtreeNode parent = getParent();
 		if (parent == null)
-			return null;
+			return getTree() == null ? null : getTree().rootAt(getCellX(), getCellY() - 1);
 
-		if (parent.children.get(0) == this)
-			return parent.children.get(3);
-		if (parent.children.get(1) == this)
-			return parent.children.get(2);
+		if (parent.getChild(0) == this)
+			return parent.getChild(3);
+		if (parent.getChild(1) == this)
+			return parent.getChild(2);
 
 		QuadtreeNode pneighbor = parent.getNeighborBelow();
 
-		if (pneighbor == null || pneighbor.children.isEmpty()) {
+		if (pneighbor == null || !pneighbor.hasChildren()) {
 			return pneighbor;
-		} else if (parent.children.get(3) == this) {
-			return pneighbor.children.get(0);
+		} else if (parent.getChild(3) == this) {
+			return pneighbor.getChild(0);
 		} else {
-			return pneighbor.children.get(1);
+			return pneighbor.getChild(1);
 		}
 	}
 
 	QuadtreeNode getNeighborLeft() {
+		if (slab.index != null)
+			return slab.index.neighbor(this, -1, 0);
+		QuadtreeNode parent = getParent();
 		if (parent == null)
-			return null;
+			return getTree() == null ? null : getTree().rootAt(getCellX() - 1, getCellY());
 
-		if (parent.children.get(1) == this)
-			return parent.children.get(0);
-		if (parent.children.get(2) == this)
-			return parent.children.get(3);
+		if (parent.getChild(1) == this)
+			return parent.getChild(0);
+		if (parent.getChild(2) == this)
+			return parent.getChild(3);
 
 		QuadtreeNode pneighbor = parent.getNeighborLeft();
 
-		if (pneighbor == null || pneighbor.children.isEmpty()) {
+		if (pneighbor == null || !pneighbor.hasChildren()) {
 			return pneighbor;
-		} else if (parent.children.get(0) == this) {
-			return pneighbor.children.get(1);
+		} else if (parent.getChild(0) == this) {
+			return pneighbor.getChild(1);
 		} else {
-			return pneighbor.children.get(2);
+			return pneighbor.getChild(2);
 		}
 	}
 
 	QuadtreeNode getNeighborRight() {
+		if (slab.index != null)
+			return slab.index.neighbor(this, 1, 0);
+		QuadtreeNode parent = getParent();
 		if (parent == null)
-			return null;
+			return getTree() == null ? null : getTree().rootAt(getCellX() + 1, getCellY());
 
-		if (parent.children.get(0) == this)
-			return parent.children.get(1);
-		if (parent.children.get(3) == this)
-			return parent.children.get(2);
+		if (parent.getChild(0) == this)
+			return parent.getChild(1);
+		if (parent.getChild(3) == this)
+			return parent.getChild(2);
 
 		QuadtreeNode pneighbor = parent.getNeighborRight();
 
-		if (pneighbor == null || pneighbor.children.isEmpty()) {
+		if (pneighbor == null || !pneighbor.hasChildren()) {
 			return pneighbor;
-		} else if (parent.children.get(1) == this) {
-			return pneighbor.children.get(0);
+		} else if (parent.getChild(1) == this) {
+			return pneighbor.getChild(0);
 		} else {
-			return pneighbor.children.get(3);
+			return pneighbor.getChild(3);
 		}
 	}
 
@@ -216,67 +534,118 @@ class QuadtreeNode {
 		}
 	}
 
+	/**
+	 * Recompute the neighbor slots. They are updated in place, and the
+	 * stencil is flagged as dirty if any entry changed.
+	 */
 	void populateNeighbors() {
-		neighbors = new ArrayList<>();
-		
-		QuadtreeNode neighborAbove = getNeighborAbove();
-		if (neighborAbove != null) {
-			if (neighborAbove.children.isEmpty()) {
-				neighbors.add(neighborAbove);
-				neighbors.add(null);
-			} else {
-				neighbors.add(neighborAbove.children.get(3));
-				neighbors.add(neighborAbove.children.get(2));
-			}
+		if (!hasNeighborSlots()) {
+			slab.setFlag(handle, NodeSlab.HAS_NEIGHBORS, true);
+			slab.setFlag(handle, NodeSlab.STENCIL_DIRTY, true);
+		}
+		populateSide(0, getNeighborAbove(), 3, 2);
+		populateSide(2, getNeighborRight(), 0, 3);
+		populateSide(4, getNeighborBelow(), 1, 0);
+		populateSide(6, getNeighborLeft(), 2, 1);
+		slab.setFlag(handle, NodeSlab.NEIGHBORS_DIRTY, false);
+	}
+
+	/**
+	 * Recompute the neighbor list only if an adjacent node was subdivided
+	 * since it was last computed.
+	 */
+	void updateNeighbors() {
+		if (isNeighborsDirty()) {
+			populateNeighbors();
+		}
+	}
+
+	/**
+	 * Fill the two neighbor slots of one side: the neighbor if it is a leaf,
+	 * else its two children along this side, or a border sentinel at the
+	 * border of the domain.
+	 */
+	private void populateSide(int slot, QuadtreeNode neighbor, int firstChild, int secondChild) {
+		if (neighbor == null) {
+			setNeighbor(slot, NodeSlab.BORDER);
+			setNeighbor(slot + 1, NodeSlab.NONE);
+		} else if (!neighbor.hasChildren()) {
+			setNeighbor(slot, neighbor.handle);
+			setNeighbor(slot + 1, NodeSlab.NONE);
 		} else {
-			neighbors.add(new QuadtreeNode(depth));
-			neighbors.add(null);
+			setNeighbor(slot, neighbor.getChild(firstChild).handle);
+			setNeighbor(slot + 1, neighbor.getChild(secondChild).handle);
 		}
-		
-		QuadtreeNode neighborRight = getNeighborRight();
-		if (neighborRight != null) {
-			if (neighborRight.children.isEmpty()) {
-				neighbors.add(neighborRight);
-				neighbors.add(null);
-			} else {
-				neighbors.add(neighborRight.children.get(0));
-				neighbors.add(neighborRight.children.get(3));
+	}
+
+	private void setNeighbor(int slot, int neighbor) {
+		if (slab.getInt(handle, NodeSlab.NEIGHBORS + slot) != neighbor) {
+			slab.setInt(handle, NodeSlab.NEIGHBORS + slot, neighbor);
+			slab.setFlag(handle, NodeSlab.STENCIL_DIRTY, true);
+		}
+	}
+
+	private void clearNeighborSlots() {
+		for (int slot = 0; slot < 8; slot++) {
+			slab.setInt(handle, NodeSlab.NEIGHBORS + slot, NodeSlab.NONE);
+		}
+		slab.setFlag(handle, NodeSlab.HAS_NEIGHBORS, false);
+	}
+
+	/**
+	 * Flag the neighbor lists that subdividing this node changes: those of
+	 * the adjacent leaves, which list this node or will list its children.
+	 */
+	private void invalidateAdjacentNeighborLists() {
+		for (int dir : NEIGHBOR_DIRS) {
+			QuadtreeNode neighbor = getNeighbor(dir);
+			if (neighbor != null) {
+				neighbor.invalidateLeafNeighborLists(FACING_CHILDREN[dir]);
 			}
-		} else {
-			neighbors.add(new QuadtreeNode(depth));
-			neighbors.add(null);
 		}
-		
-		QuadtreeNode neighborBelow = getNeighborBelow();
-		if (neighborBelow != null) {
-			if (neighborBelow.children.isEmpty()) {
-				neighbors.add(neighborBelow);
-				neighbors.add(null);
-			} else {
-				neighbors.add(neighborBelow.children.get(1));
-				neighbors.add(neighborBelow.children.get(0));
+	}
+
+	/**
+	 * Flag the leaves of this subtree along one side, given by the two
+	 * children on it
+	 */
+	private void invalidateLeafNeighborLists(int[] side) {
+		if (isLeaf()) {
+			invalidateNeighborList();
+		} else if (hasChildren()) {
+			getChild(side[0]).invalidateLeafNeighborLists(side);
+			getChild(side[1]).invalidateLeafNeighborLists(side);
+		}
+	}
+
+	private void invalidateNeighborList() {
+		if (!isNeighborsDirty()) {
+			slab.setFlag(handle, NodeSlab.NEIGHBORS_DIRTY, true);
+			if (getTree() != null) {
+				getTree().neighborListInvalidated(this);
 			}
-		} else {
-			neighbors.add(new QuadtreeNode(depth));
-			neighbors.add(null);
 		}
-		
-		QuadtreeNode neighborLeft = getNeighborLeft();
-		if (neighborLeft != null) {
-			if (neighborLeft.children.isEmpty()) {
-				neighbors.add(neighborLeft);
-				neighbors.add(null);
-			} else {
-				neighbors.add(neighborLeft.children.get(2));
-				neighbors.add(neighborLeft.children.get(1));
+	}
+	
+	/**
+	 * Flag the leaves adjacent to this node, whose stencils depend on the
+	 * boundary status and potential of this node.
+	 */
+	void markNeighborsDirty() {
+		for (int dir : NEIGHBOR_DIRS) {
+			QuadtreeNode neighbor = getNeighbor(dir);
+			if (neighbor != null) {
+				neighbor.markLeavesDirty();
 			}
-		} else {
-			neighbors.add(new QuadtreeNode(depth));
-			neighbors.add(null);
 		}
-		
-		if (neighbors.size() != 8) {
-			System.err.println("NEIGHBORS SIZE INCORRECT:  " + neighbors.size());
+	}
+	
+	private void markLeavesDirty() {
+		slab.setFlag(handle, NodeSlab.STENCIL_DIRTY, true);
+		if (hasChildren()) {
+			for (int i = 0; i < 4; i++) {
+				getChild(i).markLeavesDirty();
+			}
 		}
 	}
 
@@ -322,7 +691,8 @@ class QuadtreeNode {
 	 */
 	List<QuadtreeNode> getAllNeighbors() {
 		List<QuadtreeNode> allNeighbors = new ArrayList<>();
-		for (QuadtreeNode node : neighbors) {
+		for (int i = 0; hasNeighborSlots() && i < 8; i++) {
+			QuadtreeNode node = getNeighborSlot(i);
 			if (node != null) {
 				allNeighbors.add(node);
 			}
@@ -346,47 +716,40 @@ class QuadtreeNode {
 		return allNeighbors;
 	}
 	
+	/**
+	 * Recompute the rhs from the potential of the boundary neighbors; the
+	 * stencil itself follows from the neighbors, see getStencil()
+	 */
 	public void computeStencil() {
 		
-		double deltaSum = 0;
-		rhs = 0;
-		
+		int depth = getDepth();
+		double rhs = 0;
 		for (int i = 0; i < 4; i++) {
-			
-			if (neighbors.get(2 * i + 1) == null) {
-				if (depth == neighbors.get(2 * i).depth) {
-					deltaSum += (1 << depth);
-					if (!neighbors.get(2 * i).isBoundary) {
-						stencil.set(2 * i, (double)(1 << depth));
-					} else {
-						rhs += neighbors.get(2 * i).potential * (1 << depth);
-						//System.out.println(neighbors.get(2 * i).potential + "  " + neighbors.get(2 * i).type);
+			QuadtreeNode first = getNeighborSlot(2 * i);
+			QuadtreeNode second = getNeighborSlot(2 * i + 1);
+			if (second == null) {
+				if (depth == first.getDepth()) {
+					if (first.isBoundary()) {
+						rhs += first.getPotential() * (1 << depth);
 					}
 				} else {
 					// neighbor is larger (side length differs by a factor of 2 by properties of balanced quadtree)
-					deltaSum += 0.5 * (1 << depth);
-					if (!neighbors.get(2 * i).isBoundary) {
-						stencil.set(2 * i, 0.5 * (double)(1 << depth));
-					} else {
-						rhs += neighbors.get(2 * i).potential * 0.5 * (1 << depth);
-						
+					if (first.isBoundary()) {
+						rhs += first.getPotential() * 0.5 * (1 << depth);
 					}
 				}
 			} else {
 				// neighbor side length is smaller by a factor of 2
-				deltaSum += 2 * (1 << depth);
-				if (!neighbors.get(2 * i).isBoundary) {
-					stencil.set(2 * i, (double)(1 << depth));
-				} else {
-					rhs += neighbors.get(2 * i).potential * (1 << depth);
+				if (first.isBoundary()) {
+					rhs += first.getPotential() * (1 << depth);
 				}
-				if (!neighbors.get(2 * i + 1).isBoundary) {
-					stencil.set(2 * i + 1, (double)(1 << depth));
-				} else {
-					rhs += neighbors.get(2 * i + 1).potential * (1 << depth);
+				if (second.isBoundary()) {
+					rhs += second.getPotential() * (1 << depth);
 				}
 			}
 		}
-		stencil.set(8, deltaSum);
+		setRhs(rhs);
+		slab.setFlag(handle, NodeSlab.STENCIL_DIRTY, false);
+		slab.setFlag(handle, NodeSlab.ROW_DIRTY, true);
 	}
 }
@@ -0,0 +1,46 @@
+package dbm;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Start, termination and attraction points of a simulation, as stored in the
+ * files of lightning-config: the start point, the termination point, the
+ * number of attraction points and then the points, all relative to the domain
+ * and separated by whitespace.
+ *
+ * @author rex
+ *
+ */
+class SimulationConfig {
+
+	Point2D startPoint;
+	Point2D terminatingPoint;
+	List<Point2D> attractionPoints = new ArrayList<>();
+
+	static SimulationConfig read(File file) throws FileNotFoundException {
+		SimulationConfig config = new SimulationConfig();
+		try (Scanner s = new Scanner(file)) {
+			config.startPoint = new Point2D.Double(s.nextDouble(), s.nextDouble());
+			config.terminatingPoint = new Point2D.Double(s.nextDouble(), s.nextDouble());
+			int numParticles = s.nextInt();
+			for (int i = 0; i < numParticles; i++) {
+				config.attractionPoints.add(new Point2D.Double(s.nextDouble(), s.nextDouble()));
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * Set the points of a new simulation
+	 */
+	void applyTo(AdaptiveGrid simulation) {
+		simulation.addStart(startPoint.getX(), startPoint.getY());
+		simulation.addTermination(terminatingPoint.getX(), terminatingPoint.getY());
+		simulation.addAttractionPoints(attractionPoints);
+	}
+}
@@ -5,13 +5,86 @@ public class SimulationConstants {
 	static final int WIDTH = 128;
 	static final int HEIGHT = 128;
 	
+	/** Quadtree storage: parent and child pointers only, or also a Morton-keyed hash of the nodes */
+	static final int QUADTREE_POINTER = 0;
+	static final int QUADTREE_LINEAR = 1;
+	static final int QUADTREE_STORAGE = QUADTREE_POINTER;
+	/** Most roots along the longer side of the grid; larger roots are used beyond */
+	static final int MAX_ROOTS_PER_SIDE = 16;
+	/** Where the slab of a tree keeps the node records: in heap arrays, or in an OffHeapNodeStore */
+	static final int NODE_STORAGE_HEAP = 0;
+	static final int NODE_STORAGE_OFF_HEAP = 1;
+	static final int NODE_STORAGE = NODE_STORAGE_HEAP;
+	
 	/** For conjugate gradient method */
 	static final int FIRST_TIME_SOLVE_ITERATIONS = 10000;
 	static final int INTERATIONS = 50;
-	/** Size of candidates from which to choose growth site */
-	static final int MAX_CANDIDATES_SIZE = 50;
+	
+	/** Linear system backends for BalancedQuadtree.solve() */
+	static final int SOLVER_LA4J = 0;
+	static final int SOLVER_CSR = 1;
+	static final int SOLVER_MULTIGRID = 2;
+	static final int SOLVER_SOR = 3;
+	static final int SOLVER_MIXED_PRECISION = 4;
+	static final int SOLVER_BACKEND = SOLVER_CSR;
+	/** Backend for the solves after the first one, which only need a roughly right potential */
+	static final int INTERMEDIATE_SOLVER_BACKEND = SOLVER_CSR;
+	/** For the SOR backend */
+	static final int SOR_SWEEPS = 10;
+	static final double SOR_OMEGA = 1.5;
+	
+	/** Preconditioners for the conjugate gradient of the CSR backend */
+	static final int PRECONDITIONER_NONE = 0;
+	static final int PRECONDITIONER_JACOBI = 1;
+	static final int PRECONDITIONER_INCOMPLETE_CHOLESKY = 2;
+	static final int PRECONDITIONER_MULTIGRID = 3;
+	static final int PRECONDITIONER = PRECONDITIONER_INCOMPLETE_CHOLESKY;
+	
+	/** Recompute stencils only for leaves whose surroundings changed since the last solve */
+	static final boolean INCREMENTAL_SOLVE = true;
+	/** Conjugate gradient stops once the 2-norm of the residual drops below this fraction of that of the rhs */
+	static final double RELATIVE_TOLERANCE = 1e-6;
+	/** Conjugate gradient also stops once no leaf has a residual above this; 0 to rely on RELATIVE_TOLERANCE only */
+	static final double ABSOLUTE_TOLERANCE = 1e-4;
+	/** Threads for the conjugate gradient kernels; results are identical for any count */
+	static final int SOLVER_THREADS = 1;
 	/** Number of particles to add before solving Poisson equation again */
 	static final int SKIP = 4;
+	/**
+	 * Growth sites chosen together from the same potential per step, none
+	 * next to another; 1 for the classic one particle at a time.
+	 */
+	static final int BATCH_SIZE = 1;
+	
+	/**
+	 * Relax the potential around each new particle instead of waiting SKIP
+	 * particles, and solve globally every GLOBAL_SOLVE_INTERVAL particles to
+	 * bound the drift.
+	 */
+	static final boolean LOCAL_RELAXATION = false;
+	/** Graph distance, through neighbors, of the relaxed region */
+	static final int LOCAL_RELAXATION_RADIUS = 8;
+	static final int LOCAL_RELAXATION_SWEEPS = 10;
+	static final int GLOBAL_SOLVE_INTERVAL = 50;
+	
+	/**
+	 * Merge fine leaves back into their parents once the front has moved on,
+	 * every COARSENING_INTERVAL particles, where no particle added since the
+	 * last coarsening is within COARSENING_DISTANCE finest cells, and no
+	 * growth site of weight above COARSENING_WEIGHT_CUTOFF within
+	 * COARSENING_FRONTIER_DISTANCE. The screened sites between the branches
+	 * merge, which leaves 14-18% fewer unknowns per solve.
+	 */
+	static final boolean COARSENING = true;
+	static final int COARSENING_INTERVAL = 100;
+	static final int COARSENING_DISTANCE = 16;
+	/** Keeps every growth site and its stencil neighbors at the finest level */
+	static final int COARSENING_FRONTIER_DISTANCE = 1;
+	/**
+	 * Growth sites with a weight below this fraction of the largest one are
+	 * not protected and may merge away
+	 */
+	static final double COARSENING_WEIGHT_CUTOFF = 1e-4;
 	
 	/** Explained in paper: the power of potential in the formula of distribution for choosing next particle */
 	static final double ETA = 4;
@@ -0,0 +1,106 @@
+package dbm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Cost and convergence of one Poisson solve, as returned by
+ * BalancedQuadtree.solve() and passed to SolverListeners.
+ *
+ * @author rex
+ *
+ */
+public class SolveStats {
+
+	/** backend that did the solve, e.g. "csr" or "sor" */
+	String method;
+	/** number of unknowns, i.e. interior leaves */
+	int leafCount;
+	/** nonzeros of the assembled matrix; 0 if the backend assembles none */
+	int nonZeros;
+	/** balancing the quadtree and rebuilding the neighbor lists */
+	long treeUpdateNanos;
+	/** rows of the matrix written by the assembly; fewer than leafCount if it only patched some */
+	int assembledRows;
+	/** stencils and matrix assembly */
+	long assemblyNanos;
+	/** whole solve, assembly included */
+	long solveNanos;
+	int iterations;
+	/** residual 2-norm after each iteration, starting with the initial one */
+	double[] residualHistory;
+	/** maximum absolute residual at the end; NaN if the backend does not compute it */
+	double finalMaxResidual;
+	/** bytes allocated by the solving thread during the solve; -1 if unsupported */
+	long allocatedBytes;
+
+	public String getMethod() {
+		return method;
+	}
+
+	public int getLeafCount() {
+		return leafCount;
+	}
+
+	public int getNonZeros() {
+		return nonZeros;
+	}
+
+	public int getAssembledRows() {
+		return assembledRows;
+	}
+
+	public long getTreeUpdateNanos() {
+		return treeUpdateNanos;
+	}
+
+	public long getAssemblyNanos() {
+		return assemblyNanos;
+	}
+
+	public long getSolveNanos() {
+		return solveNanos;
+	}
+
+	/**
+	 * Tree update and solve
+	 */
+	public long getWallNanos() {
+		return treeUpdateNanos + solveNanos;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	public double[] getResidualHistory() {
+		return residualHistory.clone();
+	}
+
+	public double getFinalMaxResidual() {
+		return finalMaxResidual;
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s  leaves %d  iterations %d  max residual %.3e  wall %.3f ms", method, leafCount,
+				iterations, finalMaxResidual, getWallNanos() / 1e6);
+	}
+
+	/**
+	 * Bytes allocated so far by the current thread, or -1 if the JVM does not
+	 * report it.
+	 */
+	static long threadAllocatedBytes() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadBean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
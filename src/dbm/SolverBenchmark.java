@@ -0,0 +1,291 @@
+package dbm;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Timing harness for the Poisson solvers. Builds a quadtree with a start
+ * point, a termination point and a synthetic bolt between them for each grid
+ * size, then times cold solves of each backend and reports the iterations to
+ * tolerance of each preconditioner.
+ *
+ * Usage: SolverBenchmark [gridSize ...]
+ *        SolverBenchmark scaling [gridSize [maxThreads]]
+ *
+ * The scaling mode times Jacobi preconditioned solves on a uniformly refined
+ * grid with 1, 2, 4, ... threads.
+ *
+ *        SolverBenchmark gc [gridSize ...]
+ *
+ * The gc mode reports the bytes allocated per solve by the plain conjugate
+ * gradient and by a reused CSR solver.
+ *
+ *        SolverBenchmark mixed [gridSize]
+ *
+ * The mixed mode compares double and mixed precision solves on a uniformly
+ * refined grid, and the total variation distance between the growth site
+ * distributions the two potential fields give.
+ *
+ * @author rex
+ *
+ */
+public class SolverBenchmark {
+
+	private static final int[] DEFAULT_GRID_SIZES = { 128, 512, 2048, 4096 };
+	private static final int WARMUP_RUNS = 2;
+	private static final int MEASURED_RUNS = 5;
+	/** la4j solves are skipped beyond this many unknowns */
+	private static final int MAX_LA4J_UNKNOWNS = 10000;
+
+	private static final int[] PRECONDITIONERS = { SimulationConstants.PRECONDITIONER_NONE,
+			SimulationConstants.PRECONDITIONER_JACOBI, SimulationConstants.PRECONDITIONER_INCOMPLETE_CHOLESKY,
+			SimulationConstants.PRECONDITIONER_MULTIGRID };
+	private static final String[] PRECONDITIONER_NAMES = { "none", "jacobi", "ic0", "mg" };
+
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("scaling")) {
+			int gridSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+			int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+					: Runtime.getRuntime().availableProcessors();
+			threadScaling(gridSize, maxThreads);
+			return;
+		}
+
+		if (args.length > 0 && args[0].equals("mixed")) {
+			mixedPrecision(args.length > 1 ? Integer.parseInt(args[1]) : 512);
+			return;
+		}
+
+		boolean gc = args.length > 0 && args[0].equals("gc");
+		int firstSize = gc ? 1 : 0;
+		int[] gridSizes = DEFAULT_GRID_SIZES;
+		if (args.length > firstSize) {
+			gridSizes = new int[args.length - firstSize];
+			for (int i = firstSize; i < args.length; i++) {
+				gridSizes[i - firstSize] = Integer.parseInt(args[i]);
+			}
+		}
+		if (gc) {
+			for (int gridSize : gridSizes) {
+				allocationRate(gridSize);
+			}
+			return;
+		}
+
+		for (int gridSize : gridSizes) {
+			BalancedQuadtree quadtree = buildQuadtree(gridSize);
+			List<QuadtreeNode> leaves = interiorLeaves(quadtree);
+			System.out.println("grid " + gridSize + "x" + gridSize + "  unknowns " + leaves.size());
+
+			if (leaves.size() <= MAX_LA4J_UNKNOWNS) {
+				double la4jMillis = time(leaves, () -> new PoissonEqSolver(leaves,
+						SimulationConstants.FIRST_TIME_SOLVE_ITERATIONS).solveCRS());
+				System.out.printf("  la4j  %10.3f ms%n", la4jMillis);
+			} else {
+				System.out.println("  la4j  skipped");
+			}
+			for (int i = 0; i < PRECONDITIONERS.length; i++) {
+				int preconditioner = PRECONDITIONERS[i];
+				int[] iterations = new int[1];
+				double csrMillis = time(leaves, () -> {
+					PoissonEqSolver solver = new PoissonEqSolver(leaves,
+							SimulationConstants.FIRST_TIME_SOLVE_ITERATIONS);
+					solver.setPreconditioner(PoissonEqSolver.createPreconditioner(preconditioner));
+					iterations[0] = solver.solveCSR();
+				});
+				System.out.printf("  csr %-6s %10.3f ms  %6d iterations%n", PRECONDITIONER_NAMES[i], csrMillis,
+						iterations[0]);
+			}
+		}
+	}
+
+	/**
+	 * A quadtree with a start at the top, a termination at the bottom and a
+	 * random walk of lightning cells growing from the start towards the
+	 * middle, with neighbors already built.
+	 */
+	static BalancedQuadtree buildQuadtree(int gridSize) {
+		BalancedQuadtree quadtree = new BalancedQuadtree(gridSize, gridSize);
+		quadtree.setStart(0.5, 0.9);
+		quadtree.setTermination(0.5, 0.1);
+
+		Random random = new Random(gridSize);
+		double cellSize = 1.0 / (1 << quadtree.getMaxDepth());
+		double x = 0.5;
+		double y = 0.9;
+		while (y > 0.5) {
+			y -= cellSize;
+			x += (random.nextInt(3) - 1) * cellSize;
+			quadtree.setStart(x, y);
+		}
+		quadtree.solve();
+		return quadtree;
+	}
+
+	/**
+	 * A quadtree refined to its maximum depth everywhere, with a start at the
+	 * top and a termination at the bottom.
+	 */
+	static BalancedQuadtree buildUniformQuadtree(int gridSize) {
+		BalancedQuadtree quadtree = new BalancedQuadtree(gridSize, gridSize);
+		for (QuadtreeNode root : quadtree.roots) {
+			subdivideTo(root, quadtree.getMaxDepth());
+		}
+		quadtree.setStart(0.5, 0.9);
+		quadtree.setTermination(0.5, 0.1);
+		quadtree.solve();
+		return quadtree;
+	}
+
+	private static void subdivideTo(QuadtreeNode node, int depth) {
+		if (node.getDepth() == depth) {
+			return;
+		}
+		if (node.isLeaf()) {
+			node.subdivide();
+		}
+		for (int i = 0; i < 4; i++) {
+			QuadtreeNode child = node.getChild(i);
+			subdivideTo(child, depth);
+		}
+	}
+
+	private static void threadScaling(int gridSize, int maxThreads) {
+		BalancedQuadtree quadtree = buildUniformQuadtree(gridSize);
+		List<QuadtreeNode> leaves = interiorLeaves(quadtree);
+		System.out.println("grid " + gridSize + "x" + gridSize + "  unknowns " + leaves.size());
+
+		double serialMillis = 0;
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			PoissonEqSolver solver = new PoissonEqSolver(leaves, SimulationConstants.FIRST_TIME_SOLVE_ITERATIONS);
+			solver.setPreconditioner(new JacobiPreconditioner());
+			solver.setThreads(threads);
+			double millis = time(leaves, solver::solveCSR);
+			if (threads == 1) {
+				serialMillis = millis;
+			}
+			System.out.printf("  threads %3d %10.3f ms  speedup %5.2f%n", threads, millis, serialMillis / millis);
+		}
+	}
+
+	private static void mixedPrecision(int gridSize) {
+		BalancedQuadtree quadtree = buildUniformQuadtree(gridSize);
+		List<QuadtreeNode> leaves = interiorLeaves(quadtree);
+		System.out.println("grid " + gridSize + "x" + gridSize + "  unknowns " + leaves.size());
+
+		PoissonEqSolver solver = new PoissonEqSolver(leaves, SimulationConstants.FIRST_TIME_SOLVE_ITERATIONS);
+		solver.setPreconditioner(new JacobiPreconditioner());
+		int[] iterations = new int[1];
+
+		double doubleMillis = time(leaves, () -> iterations[0] = solver.solveCSR());
+		System.out.printf("  double %10.3f ms  %6d iterations%n", doubleMillis, iterations[0]);
+		double[] doubleDistribution = growthDistribution(quadtree);
+
+		double mixedMillis = time(leaves, () -> iterations[0] = solver.solveMixedPrecision());
+		System.out.printf("  mixed  %10.3f ms  %6d iterations  speedup %5.2f%n", mixedMillis, iterations[0],
+				doubleMillis / mixedMillis);
+		double[] mixedDistribution = growthDistribution(quadtree);
+
+		double distance = 0;
+		for (int i = 0; i < doubleDistribution.length; i++) {
+			distance += Math.abs(doubleDistribution[i] - mixedDistribution[i]);
+		}
+		System.out.printf("  growth site total variation distance %.3e%n", distance / 2);
+	}
+
+	/**
+	 * Probability of each interior leaf next to the lightning being chosen
+	 * as the next growth site, proportional to potential^ETA.
+	 */
+	private static double[] growthDistribution(BalancedQuadtree quadtree) {
+		List<QuadtreeNode> sites = new ArrayList<>();
+		for (QuadtreeNode node : quadtree.getLeaves()) {
+			if (node.getType() == QuadtreeNode.START) {
+				for (int i = 0; i < 8; i++) {
+					QuadtreeNode neighbor = node.getNeighborSlot(i);
+					if (neighbor != null && !neighbor.isBoundary() && !sites.contains(neighbor)) {
+						sites.add(neighbor);
+					}
+				}
+			}
+		}
+		double[] distribution = new double[sites.size()];
+		double total = 0;
+		for (int i = 0; i < sites.size(); i++) {
+			distribution[i] = Math.pow(Math.max(0, sites.get(i).getPotential()), SimulationConstants.ETA);
+			total += distribution[i];
+		}
+		for (int i = 0; i < distribution.length; i++) {
+			distribution[i] /= total;
+		}
+		return distribution;
+	}
+
+	private static void allocationRate(int gridSize) {
+		BalancedQuadtree quadtree = buildQuadtree(gridSize);
+		List<QuadtreeNode> leaves = interiorLeaves(quadtree);
+		System.out.println("grid " + gridSize + "x" + gridSize + "  unknowns " + leaves.size());
+
+		PoissonEqSolver solver = new PoissonEqSolver(leaves, SimulationConstants.FIRST_TIME_SOLVE_ITERATIONS);
+		System.out.printf("  cg      %12d bytes/solve%n", allocatedBytes(leaves, solver::solve));
+		System.out.printf("  csr ic0 %12d bytes/solve%n", allocatedBytes(leaves, solver::solveCSR));
+	}
+
+	/**
+	 * Mean number of bytes allocated by the current thread per cold solve,
+	 * after warm-up.
+	 */
+	static long allocatedBytes(List<QuadtreeNode> leaves, Runnable solve) {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			resetPotentials(leaves);
+			solve.run();
+		}
+		long total = 0;
+		for (int i = 0; i < MEASURED_RUNS; i++) {
+			resetPotentials(leaves);
+			long start = threadBean.getThreadAllocatedBytes(threadId);
+			solve.run();
+			total += threadBean.getThreadAllocatedBytes(threadId) - start;
+		}
+		return total / MEASURED_RUNS;
+	}
+
+	static List<QuadtreeNode> interiorLeaves(BalancedQuadtree quadtree) {
+		List<QuadtreeNode> leaves = new ArrayList<>();
+		for (QuadtreeNode node : quadtree.getLeaves()) {
+			if (!node.isBoundary()) {
+				leaves.add(node);
+			}
+		}
+		return leaves;
+	}
+
+	/**
+	 * Mean wall time of a cold solve in milliseconds.
+	 */
+	static double time(List<QuadtreeNode> leaves, Runnable solve) {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			resetPotentials(leaves);
+			solve.run();
+		}
+		long total = 0;
+		for (int i = 0; i < MEASURED_RUNS; i++) {
+			resetPotentials(leaves);
+			long start = System.nanoTime();
+			solve.run();
+			total += System.nanoTime() - start;
+		}
+		return total / 1e6 / MEASURED_RUNS;
+	}
+
+	static void resetPotentials(List<QuadtreeNode> leaves) {
+		for (QuadtreeNode node : leaves) {
+			node.setPotential(0);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package dbm;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Vector and matrix kernels of the conjugate gradient, optionally spread over
+ * a ForkJoinPool.
+ *
+ * The row range is cut into blocks of BLOCK_SIZE rows regardless of the
+ * number of threads. Reductions compute one partial result per block and then
+ * combine the partials in block order, so the results are bitwise identical
+ * from run to run and for any number of threads.
+ *
+ * @author rex
+ *
+ */
+class SolverKernels {
+
+	static final int BLOCK_SIZE = 4096;
+
+	private final int threads;
+	/** null when single-threaded */
+	private final ForkJoinPool pool;
+
+	private double[] partialSums = new double[0];
+	private double[] partialMax = new double[0];
+	private double maxResidual;
+
+	SolverKernels(int threads) {
+		this.threads = Math.max(1, threads);
+		this.pool = this.threads > 1 ? new ForkJoinPool(this.threads) : null;
+	}
+
+	int getThreads() {
+		return threads;
+	}
+
+	interface BlockTask {
+		void run(int block, int from, int to);
+	}
+
+	/**
+	 * Run task over [0, n) in blocks of BLOCK_SIZE, in parallel if the pool
+	 * has more than one thread. Each block is passed its index for writing
+	 * partial results.
+	 */
+	void forEachBlock(int n, BlockTask task) {
+		int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		if (partialSums.length < blocks) {
+			partialSums = new double[blocks];
+			partialMax = new double[blocks];
+		}
+		if (pool == null || blocks == 1) {
+			for (int block = 0; block < blocks; block++) {
+				task.run(block, block * BLOCK_SIZE, Math.min(n, (block + 1) * BLOCK_SIZE));
+			}
+		} else {
+			pool.submit(() -> IntStream.range(0, blocks).parallel()
+					.forEach(block -> task.run(block, block * BLOCK_SIZE, Math.min(n, (block + 1) * BLOCK_SIZE))))
+					.join();
+		}
+	}
+
+	private double sumPartials(int n) {
+		int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		double sum = 0;
+		for (int block = 0; block < blocks; block++) {
+			sum += partialSums[block];
+		}
+		return sum;
+	}
+
+	/**
+	 * y = Ax
+	 */
+	void multiply(SparseLaplacian a, double[] x, double[] y) {
+		forEachBlock(a.size, (block, from, to) -> {
+			for (int i = from; i < to; i++) {
+				double sum = 0;
+				for (int k = a.rowPtr[i]; k < a.rowEnd[i]; k++) {
+					sum += a.values[k] * x[a.colIdx[k]];
+				}
+				y[i] = sum;
+			}
+		});
+	}
+
+	/**
+	 * transpose(u) * v over the first n entries
+	 */
+	double dot(double[] u, double[] v, int n) {
+		forEachBlock(n, (block, from, to) -> {
+			double sum = 0;
+			for (int i = from; i < to; i++) {
+				sum += u[i] * v[i];
+			}
+			partialSums[block] = sum;
+		});
+		return sumPartials(n);
+	}
+
+	/**
+	 * r = b - r, where r holds Ax on entry.
+	 *
+	 * @return squared 2-norm of the residual; see maxResidual()
+	 */
+	double residual(double[] b, double[] r, int n) {
+		forEachBlock(n, (block, from, to) -> {
+			double sum = 0;
+			double max = 0;
+			for (int i = from; i < to; i++) {
+				r[i] = b[i] - r[i];
+				sum += r[i] * r[i];
+				max = Math.max(max, Math.abs(r[i]));
+			}
+			partialSums[block] = sum;
+			partialMax[block] = max;
+		});
+		return combineResidual(n);
+	}
+
+	/**
+	 * x = x + alpha * d, r = r - alpha * q
+	 *
+	 * @return squared 2-norm of the updated residual; see maxResidual()
+	 */
+	double update(double alpha, double[] x, double[] d, double[] r, double[] q, int n) {
+		forEachBlock(n, (block, from, to) -> {
+			double sum = 0;
+			double max = 0;
+			for (int i = from; i < to; i++) {
+				x[i] += alpha * d[i];
+				r[i] -= alpha * q[i];
+				sum += r[i] * r[i];
+				max = Math.max(max, Math.abs(r[i]));
+			}
+			partialSums[block] = sum;
+			partialMax[block] = max;
+		});
+		return combineResidual(n);
+	}
+
+	private double combineResidual(int n) {
+		int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		maxResidual = 0;
+		for (int block = 0; block < blocks; block++) {
+			maxResidual = Math.max(maxResidual, partialMax[block]);
+		}
+		return sumPartials(n);
+	}
+
+	/**
+	 * Maximum absolute residual entry from the last call to residual() or
+	 * update()
+	 */
+	double maxResidual() {
+		return maxResidual;
+	}
+
+	/**
+	 * d = z + beta * d
+	 */
+	void xpby(double[] z, double beta, double[] d, int n) {
+		forEachBlock(n, (block, from, to) -> {
+			for (int i = from; i < to; i++) {
+				d[i] = z[i] + beta * d[i];
+			}
+		});
+	}
+
+	void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+}
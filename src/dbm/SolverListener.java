@@ -0,0 +1,13 @@
+package dbm;
+
+/**
+ * Notified after every solve of a BalancedQuadtree; see
+ * BalancedQuadtree.addSolverListener().
+ *
+ * @author rex
+ *
+ */
+public interface SolverListener {
+
+	void solveFinished(SolveStats stats);
+}
@@ -0,0 +1,126 @@
+package dbm;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the stats of the most recent solves in a ring buffer, and writes them
+ * out as CSV or JSON.
+ *
+ * @author rex
+ *
+ */
+public class SolverTelemetry implements SolverListener {
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private final SolveStats[] buffer;
+	/** number of solves seen so far; the next one goes to count % capacity */
+	private long count;
+
+	public SolverTelemetry() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public SolverTelemetry(int capacity) {
+		buffer = new SolveStats[capacity];
+	}
+
+	@Override
+	public synchronized void solveFinished(SolveStats stats) {
+		buffer[(int) (count % buffer.length)] = stats;
+		count++;
+	}
+
+	/**
+	 * Number of solves recorded, including those overwritten in the buffer
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * The buffered stats, oldest first
+	 */
+	public synchronized List<SolveStats> getRecent() {
+		List<SolveStats> recent = new ArrayList<>();
+		for (long i = Math.max(0, count - buffer.length); i < count; i++) {
+			recent.add(buffer[(int) (i % buffer.length)]);
+		}
+		return recent;
+	}
+
+	/**
+	 * One row per buffered solve; the residual history is a ';' separated
+	 * list in the last column.
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		List<SolveStats> recent = getRecent();
+		long first = getCount() - recent.size();
+		out.write("solve,method,leaves,nonzeros,assembled_rows,tree_ns,assembly_ns,solve_ns,iterations,"
+				+ "final_max_residual,allocated_bytes,residual_history\n");
+		for (int i = 0; i < recent.size(); i++) {
+			SolveStats stats = recent.get(i);
+			StringBuilder row = new StringBuilder();
+			row.append(first + i).append(',').append(stats.method).append(',').append(stats.leafCount).append(',')
+					.append(stats.nonZeros).append(',').append(stats.assembledRows).append(',')
+					.append(stats.treeUpdateNanos).append(',')
+					.append(stats.assemblyNanos).append(',').append(stats.solveNanos).append(',')
+					.append(stats.iterations).append(',').append(stats.finalMaxResidual).append(',')
+					.append(stats.allocatedBytes).append(',');
+			for (int k = 0; k < stats.residualHistory.length; k++) {
+				if (k > 0) {
+					row.append(';');
+				}
+				row.append(stats.residualHistory[k]);
+			}
+			row.append('\n');
+			out.write(row.toString());
+		}
+		out.flush();
+	}
+
+	/**
+	 * A JSON array with one object per buffered solve
+	 */
+	public void writeJson(Writer out) throws IOException {
+		List<SolveStats> recent = getRecent();
+		long first = getCount() - recent.size();
+		out.write("[\n");
+		for (int i = 0; i < recent.size(); i++) {
+			SolveStats stats = recent.get(i);
+			StringBuilder object = new StringBuilder();
+			object.append("  {\"solve\": ").append(first + i)
+					.append(", \"method\": \"").append(stats.method)
+					.append("\", \"leaves\": ").append(stats.leafCount)
+					.append(", \"nonzeros\": ").append(stats.nonZeros)
+					.append(", \"assembledRows\": ").append(stats.assembledRows)
+					.append(", \"treeNanos\": ").append(stats.treeUpdateNanos)
+					.append(", \"assemblyNanos\": ").append(stats.assemblyNanos)
+					.append(", \"solveNanos\": ").append(stats.solveNanos)
+					.append(", \"iterations\": ").append(stats.iterations)
+					.append(", \"finalMaxResidual\": ").append(jsonNumber(stats.finalMaxResidual))
+					.append(", \"allocatedBytes\": ").append(stats.allocatedBytes)
+					.append(", \"residualHistory\": [");
+			for (int k = 0; k < stats.residualHistory.length; k++) {
+				if (k > 0) {
+					object.append(", ");
+				}
+				object.append(jsonNumber(stats.residualHistory[k]));
+			}
+			object.append("]}").append(i < recent.size() - 1 ? ",\n" : "\n");
+			out.write(object.toString());
+		}
+		out.write("]\n");
+		out.flush();
+	}
+
+	/**
+	 * JSON has no NaN or infinity
+	 */
+	private static String jsonNumber(double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+	}
+}
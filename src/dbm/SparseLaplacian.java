@@ -0,0 +1,326 @@
+package dbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Discrete Laplacian of the balanced quadtree in compressed sparse row (CSR)
+ * form, assembled directly from the neighbors and stencils of the interior
+ * leaves. Row i corresponds to the leaf with idx i; columns within a row are
+ * sorted in ascending order and include the diagonal.
+ *
+ * Row i occupies positions rowPtr[i] to rowEnd[i] - 1 of colIdx and values.
+ * The rows of the quadtree Laplacian have a fixed stride of MAX_ROW_ENTRIES,
+ * so that any row can be rewritten in place; the coarse operators built by
+ * QuadtreeMultigrid are packed with appendRow().
+ *
+ * A leaf keeps its row from one update() to the next, whatever its position
+ * in the leaf list. The row of a leaf that stopped being an interior leaf
+ * becomes the identity row x = 0 and is reused by the next new leaf, so a
+ * growth step only rewrites the rows around the cells that changed. The
+ * arrays are kept between assemblies and only grow, so repeated solves on a
+ * growing quadtree do not allocate.
+ *
+ * @author rex
+ *
+ */
+class SparseLaplacian {
+
+	/** At most 8 neighbors plus the node itself */
+	static final int MAX_ROW_ENTRIES = 9;
+
+	/** number of rows (and columns), identity rows included */
+	int size;
+
+	int[] rowPtr = new int[1];
+	int[] rowEnd = new int[1];
+	int[] colIdx = new int[0];
+	double[] values = new double[0];
+	/** position of the diagonal entry of each row in colIdx and values */
+	int[] diagPtr = new int[0];
+	/** right-hand side, contributed by boundary neighbors */
+	double[] rhs = new double[0];
+
+	/**
+	 * True if the rows were renumbered since the last clearChanges(), so
+	 * whatever was built from the matrix must be built again
+	 */
+	boolean restructured;
+	/** Rows rewritten since the last clearChanges(), in no particular order */
+	int[] changedRows = new int[0];
+	int changedCount;
+	/** Rows written by the last assemble() or update() */
+	int lastAssembledRows;
+
+	/** the quadtree node of each row, null for identity rows */
+	private QuadtreeNode[] rowNodes = new QuadtreeNode[0];
+	/** identity rows free for new leaves */
+	private int[] freeRows = new int[0];
+	private int freeCount;
+	private int nonZeros;
+
+	/** update() marks live rows and rows to rewrite with the current stamp */
+	private int[] liveStamp = new int[0];
+	private int[] rewriteStamp = new int[0];
+	private boolean[] rowChanged = new boolean[0];
+	private int stamp;
+	private List<QuadtreeNode> newNodes = new ArrayList<>();
+	private List<QuadtreeNode> rewrite = new ArrayList<>();
+
+	private int[] rowCols = new int[MAX_ROW_ENTRIES];
+	private double[] rowValues = new double[MAX_ROW_ENTRIES];
+
+	/**
+	 * Number the leaves by their position in leaves and assemble every row
+	 * from their stencils, which must be up to date.
+	 */
+	void assemble(List<QuadtreeNode> leaves) {
+		size = leaves.size();
+		ensureCapacity(size);
+		Arrays.fill(rowNodes, null);
+		freeCount = 0;
+		nonZeros = 0;
+		for (int i = 0; i < size; i++) {
+			QuadtreeNode node = leaves.get(i);
+			node.setIdx(i);
+			rowNodes[i] = node;
+			rowPtr[i] = i * MAX_ROW_ENTRIES;
+			rowEnd[i] = rowPtr[i];
+		}
+		for (int i = 0; i < size; i++) {
+			writeRow(i, rowNodes[i]);
+		}
+		lastAssembledRows = size;
+		restructured = true;
+	}
+
+	/**
+	 * Bring the matrix up to date with leaves, rewriting only the rows that
+	 * changed: those of leaves that are new or whose stencils are dirty or
+	 * were recomputed since, and those of the neighbors of leaves that came
+	 * or went. Their stencils are recomputed; the others must be up to date.
+	 */
+	void update(List<QuadtreeNode> leaves) {
+		stamp++;
+		newNodes.clear();
+		rewrite.clear();
+		for (QuadtreeNode node : leaves) {
+			if (hasRow(node)) {
+				liveStamp[node.getIdx()] = stamp;
+				if (node.isStencilDirty() || node.isRowDirty()) {
+					markRewrite(node);
+				}
+			} else {
+				newNodes.add(node);
+			}
+		}
+
+		// leaves that went: their neighbors lose a column
+		for (int i = 0; i < size; i++) {
+			if (rowNodes[i] != null && liveStamp[i] != stamp) {
+				for (int k = rowPtr[i]; k < rowEnd[i]; k++) {
+					QuadtreeNode neighbor = rowNodes[colIdx[k]];
+					if (colIdx[k] != i && neighbor != null && liveStamp[neighbor.getIdx()] == stamp) {
+						markRewrite(neighbor);
+					}
+				}
+				freeRow(i);
+			}
+		}
+		if (freeCount - newNodes.size() > size / 2) {
+			// mostly identity rows after a coarsening: number the rows afresh
+			for (QuadtreeNode node : leaves) {
+				node.computeStencil();
+			}
+			assemble(leaves);
+			return;
+		}
+
+		// leaves that came: their neighbors gain a column
+		for (QuadtreeNode node : newNodes) {
+			int row = freeCount > 0 ? freeRows[--freeCount] : addRow();
+			node.setIdx(row);
+			rowNodes[row] = node;
+			liveStamp[row] = stamp;
+			markRewrite(node);
+		}
+		for (QuadtreeNode node : newNodes) {
+			for (int i = 0; i < 8; i++) {
+				QuadtreeNode neighbor = node.getNeighborSlot(i);
+				if (neighbor != null && !neighbor.isBoundary() && hasRow(neighbor)) {
+					markRewrite(neighbor);
+				}
+			}
+		}
+
+		for (QuadtreeNode node : rewrite) {
+			node.computeStencil();
+			writeRow(node.getIdx(), node);
+		}
+		lastAssembledRows = rewrite.size();
+	}
+
+	/**
+	 * The leaf of row i, or null for an identity row
+	 */
+	QuadtreeNode nodeAt(int i) {
+		return rowNodes[i];
+	}
+
+	/**
+	 * Forget the changes recorded so far, once the preconditioner has taken
+	 * them into account
+	 */
+	void clearChanges() {
+		for (int k = 0; k < changedCount; k++) {
+			rowChanged[changedRows[k]] = false;
+		}
+		changedCount = 0;
+		restructured = false;
+	}
+
+	private boolean hasRow(QuadtreeNode node) {
+		return node.getIdx() >= 0 && node.getIdx() < size && rowNodes[node.getIdx()] == node;
+	}
+
+	private void markRewrite(QuadtreeNode node) {
+		if (rewriteStamp[node.getIdx()] != stamp) {
+			rewriteStamp[node.getIdx()] = stamp;
+			rewrite.add(node);
+		}
+	}
+
+	private int addRow() {
+		ensureCapacity(size + 1);
+		rowPtr[size] = size * MAX_ROW_ENTRIES;
+		rowEnd[size] = rowPtr[size];
+		return size++;
+	}
+
+	/**
+	 * Make row i the identity row with a zero rhs, which decouples it: a zero
+	 * guess solves it exactly, and the columns of the rows around it go
+	 * together with the leaf.
+	 */
+	private void freeRow(int i) {
+		rowNodes[i] = null;
+		int start = i * MAX_ROW_ENTRIES;
+		nonZeros -= rowEnd[i] - rowPtr[i];
+		rowPtr[i] = start;
+		rowEnd[i] = start + 1;
+		colIdx[start] = i;
+		values[start] = 1;
+		diagPtr[i] = start;
+		rhs[i] = 0;
+		nonZeros++;
+		freeRows[freeCount++] = i;
+		recordChange(i);
+	}
+
+	/**
+	 * Write the row of node in place at row i
+	 */
+	private void writeRow(int i, QuadtreeNode node) {
+		int rowSize = 0;
+		rowCols[rowSize] = i;
+		rowValues[rowSize] = node.getStencil(8);
+		rowSize++;
+		for (int j = 0; j < 8; j++) {
+			QuadtreeNode neighbor = node.getNeighborSlot(j);
+			if (neighbor != null && !neighbor.isBoundary()) {
+				rowCols[rowSize] = neighbor.getIdx();
+				rowValues[rowSize] = -node.getStencil(j);
+				rowSize++;
+			}
+		}
+		int start = i * MAX_ROW_ENTRIES;
+		nonZeros -= rowEnd[i] - rowPtr[i];
+		rowPtr[i] = start;
+		rowEnd[i] = appendRow(i, start, rowCols, rowValues, rowSize);
+		rhs[i] = node.getRhs();
+		nonZeros += rowSize;
+		node.setRowDirty(false);
+		recordChange(i);
+	}
+
+	private void recordChange(int i) {
+		if (!rowChanged[i]) {
+			rowChanged[i] = true;
+			changedRows[changedCount++] = i;
+		}
+	}
+
+	/**
+	 * Sort the entries of a row by column, then store them from position nnz.
+	 *
+	 * @return the position after the row
+	 */
+	int appendRow(int row, int nnz, int[] rowCols, double[] rowValues, int rowSize) {
+		// insertion sort on column index; a row holds at most a few entries
+		for (int k = 1; k < rowSize; k++) {
+			int col = rowCols[k];
+			double value = rowValues[k];
+			int m = k - 1;
+			while (m >= 0 && rowCols[m] > col) {
+				rowCols[m + 1] = rowCols[m];
+				rowValues[m + 1] = rowValues[m];
+				m--;
+			}
+			rowCols[m + 1] = col;
+			rowValues[m + 1] = value;
+		}
+
+		if (colIdx.length < nnz + rowSize) {
+			colIdx = Arrays.copyOf(colIdx, 2 * (nnz + rowSize));
+			values = Arrays.copyOf(values, 2 * (nnz + rowSize));
+		}
+		for (int k = 0; k < rowSize; k++) {
+			if (rowCols[k] == row) {
+				diagPtr[row] = nnz + k;
+			}
+		}
+		System.arraycopy(rowCols, 0, colIdx, nnz, rowSize);
+		System.arraycopy(rowValues, 0, values, nnz, rowSize);
+		rowEnd[row] = nnz + rowSize;
+		return nnz + rowSize;
+	}
+
+	/**
+	 * Make room for rows, keeping the ones there are
+	 */
+	void ensureCapacity(int rows) {
+		if (rowPtr.length < rows + 1) {
+			int capacity = Math.max(rows + 1, 2 * rowPtr.length);
+			rowPtr = Arrays.copyOf(rowPtr, capacity);
+			rowEnd = Arrays.copyOf(rowEnd, capacity);
+			rhs = Arrays.copyOf(rhs, capacity);
+			diagPtr = Arrays.copyOf(diagPtr, capacity);
+			colIdx = Arrays.copyOf(colIdx, capacity * MAX_ROW_ENTRIES);
+			values = Arrays.copyOf(values, capacity * MAX_ROW_ENTRIES);
+			rowNodes = Arrays.copyOf(rowNodes, capacity);
+			freeRows = Arrays.copyOf(freeRows, capacity);
+			liveStamp = Arrays.copyOf(liveStamp, capacity);
+			rewriteStamp = Arrays.copyOf(rewriteStamp, capacity);
+			rowChanged = Arrays.copyOf(rowChanged, capacity);
+			changedRows = Arrays.copyOf(changedRows, capacity);
+		}
+	}
+
+	/**
+	 * y = Ax
+	 */
+	void multiply(double[] x, double[] y) {
+		for (int i = 0; i < size; i++) {
+			double sum = 0;
+			for (int k = rowPtr[i]; k < rowEnd[i]; k++) {
+				sum += values[k] * x[colIdx[k]];
+			}
+			y[i] = sum;
+		}
+	}
+
+	int nonZeros() {
+		return nonZeros;
+	}
+}
@@ -8,6 +8,7 @@ import java.util.List;
 
 import javax.imageio.ImageIO;
 
+import za.co.iocom.math.MathUtil;
 import za.co.luma.geom.Vector2DDouble;
 import za.co.luma.math.function.Falloff;
 import za.co.luma.math.function.PerlinFunction2D;
@@ -63,7 +64,7 @@ public class PoissonDiskDemo
 		
 		clearImage(image);		
 		
-		Sampler<Vector2DDouble> sampler = new UniformPoissonDiskSampler(0, 0, w, w, 10);
+		Sampler<Vector2DDouble> sampler = new UniformPoissonDiskSampler(0, 0, w, w, 10, MathUtil.random);
 		List<Vector2DDouble> pointList = sampler.sample();
 
 		int i = 0;
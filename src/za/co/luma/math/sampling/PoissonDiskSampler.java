@@ -2,6 +2,7 @@ package za.co.luma.math.sampling;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import za.co.iocom.math.MathUtil;
 import za.co.luma.geom.Vector2DDouble;
@@ -198,10 +199,15 @@ public class PoissonDiskSampler implements Sampler<Vector2DDouble>
 	 */
 	static Vector2DDouble generateRandomAround(Vector2DDouble centre, double minDist)
 	{
-		double d = MathUtil.random.nextDouble();
+		return generateRandomAround(centre, minDist, MathUtil.random);
+	}
+
+	static Vector2DDouble generateRandomAround(Vector2DDouble centre, double minDist, Random random)
+	{
+		double d = random.nextDouble();
 		double radius = (minDist + minDist * (d));
 
-		d = MathUtil.random.nextDouble();
+		d = random.nextDouble();
 		double angle = 2 * Math.PI * (d);
 
 		double newX = radius * Math.sin(angle);
@@ -2,8 +2,8 @@ package za.co.luma.math.sampling;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
-import za.co.iocom.math.MathUtil;
 import za.co.luma.geom.Vector2DDouble;
 import za.co.luma.geom.Vector2DInt;
 
@@ -23,9 +23,12 @@ public class UniformPoissonDiskSampler implements Sampler<Vector2DDouble>
 	private final double cellSize; // r / sqrt(n), for 2D: r / sqrt(2)
 	private final double minDist; // r
 	private final int gridWidth, gridHeight;
+	private final Random random;
 
 	/**
-	 * Construct a new PoissonDisk object, with a given domain and minimum distance between points.
+	 * Construct a new PoissonDisk object, with a given domain and minimum distance between points, drawing from the
+	 * given generator. There is no overload on the shared MathUtil.random, so that samplers on different threads
+	 * neither contend nor depend on each other, and a seeded run does not depend on other users of MathUtil.
 	 * 
 	 * @param x0
 	 *            x-coordinate of bottom left corner of domain.
@@ -39,13 +42,15 @@ public class UniformPoissonDiskSampler implements Sampler<Vector2DDouble>
 	 * @param minDist
 	 *            The minimum distance between two points.
 	 */
-	public UniformPoissonDiskSampler(double x0, double y0, double x1, double y1, double minDist)
+	public UniformPoissonDiskSampler(double x0, double y0, double x1, double y1, double minDist, Random random)
 	{
-		this(x0, y0, x1, y1, minDist, DEFAULT_POINTS_TO_GENERATE);
+		this(x0, y0, x1, y1, minDist, DEFAULT_POINTS_TO_GENERATE, random);
 	}
 
-	public UniformPoissonDiskSampler(double x0, double y0, double x1, double y1, double minDist, int pointsToGenerate)
+	public UniformPoissonDiskSampler(double x0, double y0, double x1, double y1, double minDist, int pointsToGenerate,
+			Random random)
 	{
+		this.random = random;
 		p0 = new Vector2DDouble(x0, y0);
 		p1 = new Vector2DDouble(x1, y1);
 		dimensions = new Vector2DDouble(x1 - x0, y1 - y0);
@@ -81,7 +86,7 @@ public class UniformPoissonDiskSampler implements Sampler<Vector2DDouble>
 
 		while (!activeList.isEmpty() && (pointList.size() < PoissonDiskSampler.MAX_POINTS))
 		{
-			int listIndex = MathUtil.random.nextInt(activeList.size());
+			int listIndex = random.nextInt(activeList.size());
 
 			Vector2DDouble point = activeList.get(listIndex);
 			boolean found = false;
@@ -117,7 +122,7 @@ public class UniformPoissonDiskSampler implements Sampler<Vector2DDouble>
 			List<Vector2DDouble> pointList, Vector2DDouble point)
 	{
 		boolean found = false;
-		Vector2DDouble q = PoissonDiskSampler.generateRandomAround(point, minDist);
+		Vector2DDouble q = PoissonDiskSampler.generateRandomAround(point, minDist, random);
 
 		if ((q.x >= p0.x) && (q.x < p1.x) && (q.y > p0.y) && (q.y < p1.y))
 		{
@@ -161,10 +166,10 @@ public class UniformPoissonDiskSampler implements Sampler<Vector2DDouble>
 	 */
 	private void addFirstPoint(Vector2DDouble[][] grid, List<Vector2DDouble> activeList, List<Vector2DDouble> pointList)
 	{
-		double d = MathUtil.random.nextDouble();
+		double d = random.nextDouble();
 		double xr = p0.x + dimensions.x * (d);
 
-		d = MathUtil.random.nextDouble();
+		d = random.nextDouble();
 		double yr = p0.y + dimensions.y * (d);
 
 		Vector2DDouble p = new Vector2DDouble(xr, yr);
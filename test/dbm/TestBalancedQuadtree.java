@@ -0,0 +1,97 @@
+package dbm;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestBalancedQuadtree extends TestCase
+{
+	/**
+	 * After insertAll() no leaf has a neighbor more than one level coarser,
+	 * with pointer and with linear storage
+	 */
+	public void testBalancedAfterInsertAll()
+	{
+		int[] storages = { SimulationConstants.QUADTREE_POINTER, SimulationConstants.QUADTREE_LINEAR };
+		for (int storage : storages) {
+			BalancedQuadtree quadtree = new BalancedQuadtree(256, 256, storage);
+			Random random = new Random(4);
+			List<Point2D> points = new ArrayList<>();
+			for (int i = 0; i < 300; i++) {
+				points.add(new Point2D.Double(random.nextDouble(), random.nextDouble()));
+			}
+			List<QuadtreeNode> inserted = quadtree.insertAll(points);
+
+			for (QuadtreeNode node : inserted) {
+				assertTrue(node.isLeaf());
+				assertEquals(quadtree.getMaxDepth(), node.getDepth());
+			}
+			for (QuadtreeNode leaf : quadtree.getLeaves()) {
+				for (int dir : QuadtreeNode.NEIGHBOR_DIRS) {
+					QuadtreeNode neighbor = leaf.getNeighbor(dir);
+					if (neighbor != null) {
+						assertTrue(neighbor.getDepth() >= leaf.getDepth() - 1);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removing a node from the middle of a run of keys that probe from the
+	 * same slot keeps the nodes after it reachable
+	 */
+	public void testIndexRemoveInsideCollisionCluster()
+	{
+		BalancedQuadtree quadtree = SolverBenchmark.buildUniformQuadtree(64);
+		List<QuadtreeNode> nodes = new ArrayList<>();
+		collect(quadtree.roots.get(0), nodes);
+		// stay below half of the initial capacity, so the table keeps 1024 slots
+		nodes = nodes.subList(0, 500);
+
+		// group the nodes by home slot, as the table hashes them
+		Map<Integer, List<QuadtreeNode>> slots = new HashMap<>();
+		for (QuadtreeNode node : nodes) {
+			long key = LinearQuadtreeIndex.locationalCode(node.getDepth(), node.getCellX(), node.getCellY());
+			int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & 1023;
+			slots.computeIfAbsent(slot, s -> new ArrayList<>()).add(node);
+		}
+		List<QuadtreeNode> cluster = null;
+		for (List<QuadtreeNode> candidates : slots.values()) {
+			if (candidates.size() >= 3 && (cluster == null || candidates.size() > cluster.size())) {
+				cluster = candidates;
+			}
+		}
+		assertNotNull(cluster);
+
+		LinearQuadtreeIndex index = new LinearQuadtreeIndex(1, 1);
+		for (QuadtreeNode node : nodes) {
+			index.add(node);
+		}
+		QuadtreeNode removed = cluster.get(1);
+		index.remove(removed);
+
+		assertEquals(nodes.size() - 1, index.size());
+		assertNull(index.get(removed.getDepth(), removed.getCellX(), removed.getCellY()));
+		for (QuadtreeNode node : nodes) {
+			if (node != removed) {
+				assertSame(node, index.get(node.getDepth(), node.getCellX(), node.getCellY()));
+			}
+		}
+	}
+
+	private static void collect(QuadtreeNode node, List<QuadtreeNode> nodes)
+	{
+		nodes.add(node);
+		if (node.hasChildren()) {
+			for (int i = 0; i < 4; i++) {
+				collect(node.getChild(i), nodes);
+			}
+		}
+	}
+}
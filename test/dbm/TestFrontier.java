@@ -0,0 +1,88 @@
+package dbm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class TestFrontier extends TestCase
+{
+	double DELTA = 1e-9;
+
+	/**
+	 * Random adds and removes of the leaves of a tree, mirrored on a set:
+	 * contains(), size(), the node list and the positions of the nodes agree
+	 */
+	public void testAddRemoveContains()
+	{
+		BalancedQuadtree quadtree = new BalancedQuadtree(64, 64);
+		quadtree.insert(0.3, 0.3);
+		quadtree.insert(0.7, 0.6);
+		List<QuadtreeNode> leaves = new ArrayList<>(quadtree.getLeaves());
+		Frontier frontier = quadtree.getFrontier();
+		Random random = new Random(2);
+		for (QuadtreeNode leaf : leaves) {
+			leaf.setPotential(random.nextDouble());
+		}
+
+		Set<QuadtreeNode> expected = new HashSet<>();
+		for (int step = 0; step < 5000; step++) {
+			QuadtreeNode node = leaves.get(random.nextInt(leaves.size()));
+			if (random.nextBoolean()) {
+				frontier.add(node);
+				expected.add(node);
+			} else {
+				frontier.remove(node);
+				expected.remove(node);
+			}
+
+			assertEquals(expected.contains(node), frontier.contains(node));
+			assertEquals(expected.size(), frontier.size());
+			assertEquals(expected.isEmpty(), frontier.isEmpty());
+		}
+
+		assertEquals(expected, new HashSet<>(frontier.getNodes()));
+		double total = 0;
+		for (int i = 0; i < frontier.size(); i++) {
+			QuadtreeNode node = frontier.get(i);
+			assertEquals(i, node.getFrontierPosition());
+			total += Math.pow(node.getPotential(), SimulationConstants.ETA);
+		}
+		assertEquals(total, frontier.totalWeight(), DELTA);
+		for (QuadtreeNode leaf : leaves) {
+			assertEquals(expected.contains(leaf), frontier.contains(leaf));
+		}
+	}
+
+	/**
+	 * A suppressed node is never sampled until restored, and a changed
+	 * potential shows in the weights after refreshWeights()
+	 */
+	public void testSuppressRestoreRefresh()
+	{
+		BalancedQuadtree quadtree = new BalancedQuadtree(8, 8);
+		List<QuadtreeNode> leaves = new ArrayList<>(quadtree.getLeaves());
+		Frontier frontier = quadtree.getFrontier();
+		for (QuadtreeNode leaf : leaves) {
+			leaf.setPotential(1);
+			frontier.add(leaf);
+		}
+		QuadtreeNode suppressed = leaves.get(1);
+		frontier.suppress(suppressed);
+		assertEquals(leaves.size() - 1, frontier.totalWeight(), DELTA);
+		Random random = new Random(3);
+		for (int draw = 0; draw < 1000; draw++) {
+			assertNotSame(suppressed, frontier.sample(random.nextDouble() * frontier.totalWeight()));
+		}
+		frontier.restore(suppressed);
+		assertEquals(leaves.size(), frontier.totalWeight(), DELTA);
+
+		leaves.get(2).setPotential(2);
+		assertEquals(leaves.size(), frontier.totalWeight(), DELTA);
+		frontier.refreshWeights();
+		assertEquals(leaves.size() - 1 + Math.pow(2, SimulationConstants.ETA), frontier.totalWeight(), DELTA);
+	}
+}
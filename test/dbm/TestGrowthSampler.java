@@ -0,0 +1,88 @@
+package dbm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestGrowthSampler extends TestCase
+{
+	double DELTA = 1e-9;
+
+	/**
+	 * Random adds, sets and removes, mirrored on a plain list: totals and
+	 * samples agree with prefix sums over the list
+	 */
+	public void testMatchesPrefixSums()
+	{
+		Random random = new Random(5);
+		GrowthSampler sampler = new GrowthSampler();
+		List<Double> weights = new ArrayList<>();
+
+		for (int step = 0; step < 2000; step++) {
+			int operation = random.nextInt(4);
+			if (operation <= 1 || weights.isEmpty()) {
+				double weight = random.nextInt(5) == 0 ? 0 : random.nextDouble();
+				sampler.add(weight);
+				weights.add(weight);
+			} else if (operation == 2) {
+				int index = random.nextInt(weights.size());
+				double weight = random.nextDouble();
+				sampler.set(index, weight);
+				weights.set(index, weight);
+			} else {
+				// the owner moves the last one into the hole
+				int index = random.nextInt(weights.size());
+				sampler.remove(index);
+				double last = weights.remove(weights.size() - 1);
+				if (index < weights.size()) {
+					weights.set(index, last);
+				}
+			}
+
+			assertEquals(weights.size(), sampler.size());
+			double total = 0;
+			for (double weight : weights) {
+				total += weight;
+			}
+			assertEquals(total, sampler.total(), DELTA);
+			for (int i = 0; i < weights.size(); i++) {
+				assertEquals(weights.get(i), sampler.weight(i), 0);
+			}
+			if (total > 0) {
+				for (int draw = 0; draw < 5; draw++) {
+					double target = random.nextDouble() * total;
+					assertEquals(bruteForceSample(weights, target), sampler.sample(target));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The last index of nonzero weight is returned for targets at the total
+	 */
+	public void testSampleAtTotal()
+	{
+		GrowthSampler sampler = new GrowthSampler();
+		sampler.add(1);
+		sampler.add(2);
+		sampler.add(0);
+		assertEquals(1, sampler.sample(sampler.total()));
+	}
+
+	/**
+	 * First index whose cumulative weight exceeds target
+	 */
+	private static int bruteForceSample(List<Double> weights, double target)
+	{
+		double sum = 0;
+		for (int i = 0; i < weights.size(); i++) {
+			sum += weights.get(i);
+			if (sum > target) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
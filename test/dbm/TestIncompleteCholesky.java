@@ -0,0 +1,111 @@
+package dbm;
+
+import junit.framework.TestCase;
+
+public class TestIncompleteCholesky extends TestCase
+{
+	double DELTA = 1e-12;
+
+	/**
+	 * Laplacian of 2x2 cells: 0 and 3 are not neighbors, and neither are 1
+	 * and 2, so IC(0) drops the fill in at (2, 1) that the full Cholesky
+	 * factor has.
+	 */
+	private static final double[][] A = {
+			{ 4, -1, -1, 0 },
+			{ -1, 4, 0, -1 },
+			{ -1, 0, 4, -1 },
+			{ 0, -1, -1, 4 } };
+
+	/** IC(0) of A, factored by hand */
+	private static final double[][] L = {
+			{ 2, 0, 0, 0 },
+			{ -0.5, Math.sqrt(15) / 2, 0, 0 },
+			{ -0.5, 0, Math.sqrt(15) / 2, 0 },
+			{ 0, -2 / Math.sqrt(15), -2 / Math.sqrt(15), Math.sqrt(52.0 / 15) } };
+
+	public void testApplyMatchesHandFactor()
+	{
+		SparseLaplacian laplacian = matrix(A);
+		IncompleteCholeskyPreconditioner preconditioner = new IncompleteCholeskyPreconditioner();
+		preconditioner.setup(laplacian);
+
+		double[] r = { 1, 2, 3, 4 };
+		double[] z = new double[4];
+		preconditioner.apply(r, z);
+
+		double[] expected = solve(L, r);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(expected[i], z[i], DELTA);
+		}
+	}
+
+	/**
+	 * Each unit vector, so every column of the inverse of L * transpose(L)
+	 */
+	public void testApplyUnitVectors()
+	{
+		IncompleteCholeskyPreconditioner preconditioner = new IncompleteCholeskyPreconditioner();
+		preconditioner.setup(matrix(A));
+		for (int j = 0; j < 4; j++) {
+			double[] r = new double[4];
+			r[j] = 1;
+			double[] z = new double[4];
+			preconditioner.apply(r, z);
+			double[] expected = solve(L, r);
+			for (int i = 0; i < 4; i++) {
+				assertEquals(expected[i], z[i], DELTA);
+			}
+		}
+	}
+
+	private static SparseLaplacian matrix(double[][] a)
+	{
+		int n = a.length;
+		SparseLaplacian laplacian = new SparseLaplacian();
+		laplacian.size = n;
+		laplacian.ensureCapacity(n);
+		int[] rowCols = new int[n];
+		double[] rowValues = new double[n];
+		int nnz = 0;
+		for (int i = 0; i < n; i++) {
+			int rowSize = 0;
+			for (int j = 0; j < n; j++) {
+				if (a[i][j] != 0) {
+					rowCols[rowSize] = j;
+					rowValues[rowSize] = a[i][j];
+					rowSize++;
+				}
+			}
+			laplacian.rowPtr[i] = nnz;
+			nnz = laplacian.appendRow(i, nnz, rowCols, rowValues, rowSize);
+		}
+		laplacian.rowPtr[n] = nnz;
+		return laplacian;
+	}
+
+	/**
+	 * Solve L * transpose(L) * z = r by forward and back substitution
+	 */
+	private static double[] solve(double[][] l, double[] r)
+	{
+		int n = r.length;
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			double sum = r[i];
+			for (int k = 0; k < i; k++) {
+				sum -= l[i][k] * y[k];
+			}
+			y[i] = sum / l[i][i];
+		}
+		double[] z = new double[n];
+		for (int i = n - 1; i >= 0; i--) {
+			double sum = y[i];
+			for (int k = i + 1; k < n; k++) {
+				sum -= l[k][i] * z[k];
+			}
+			z[i] = sum / l[i][i];
+		}
+		return z;
+	}
+}
@@ -0,0 +1,60 @@
+package dbm;
+
+import java.util.List;
+import java.util.Random;
+
+import org.la4j.Matrix;
+import org.la4j.Vector;
+import org.la4j.matrix.sparse.CRSMatrix;
+import org.la4j.vector.dense.BasicVector;
+
+import junit.framework.TestCase;
+
+public class TestSparseLaplacian extends TestCase
+{
+	double DELTA = 1e-9;
+
+	/**
+	 * The CSR matrix assembled from the stencils multiplies as the la4j
+	 * matrix that solveCRS() builds from the same stencils
+	 */
+	public void testMultiplyMatchesLa4j()
+	{
+		BalancedQuadtree quadtree = SolverBenchmark.buildQuadtree(32);
+		List<QuadtreeNode> leaves = quadtree.getInteriorLeaves();
+		int n = leaves.size();
+		for (QuadtreeNode node : leaves) {
+			node.computeStencil();
+		}
+
+		SparseLaplacian laplacian = new SparseLaplacian();
+		laplacian.assemble(leaves);
+		assertEquals(n, laplacian.size);
+
+		Matrix a = new CRSMatrix(n, n);
+		for (int i = 0; i < n; i++) {
+			QuadtreeNode node = leaves.get(i);
+			for (int j = 0; j < 8; j++) {
+				QuadtreeNode neighbor = node.getNeighborSlot(j);
+				if (neighbor != null && !neighbor.isBoundary()) {
+					a.set(i, neighbor.getIdx(), -node.getStencil(j));
+				}
+			}
+			a.set(i, i, node.getStencil(8));
+		}
+
+		Random random = new Random(1);
+		double[] x = new double[n];
+		Vector xVector = new BasicVector(n);
+		for (int i = 0; i < n; i++) {
+			x[i] = random.nextDouble();
+			xVector.set(i, x[i]);
+		}
+		double[] y = new double[n];
+		laplacian.multiply(x, y);
+		Vector expected = a.multiply(xVector);
+		for (int i = 0; i < n; i++) {
+			assertEquals(expected.get(i), y[i], DELTA);
+		}
+	}
+}